@@ -16,16 +16,41 @@ limitations under the License.
 
 package com.jhlabs.map;
 
+import java.io.*;
+
 /**
- * A geodetic datum. This isn't used (yet).
+ * A geodetic datum: an ellipsoid and the Helmert transformation from the
+ * datum to WGS84, as in the PROJ.4 +towgs84 parameter.
+ *
+ * Batch methods work on interleaved triples in double arrays: lon/lat in
+ * degrees and ellipsoidal height in metres for geodetic coordinates, X/Y/Z in
+ * metres for geocentric coordinates. Source and destination arrays may be
+ * the same. The methods do not allocate objects.
  */
-public class Datum {
-	// Just a placeholder for now
+public class Datum implements Serializable {
+
+	/**
+	 * Seconds of arc to radians.
+	 */
+	private final static double SEC_TO_RAD = Math.PI / (180 * 3600);
 
 	String name;
+	String shortName;
 	Ellipsoid ellipsoid;
 	double deltaX, deltaY, deltaZ;
-	
+	/**
+	 * The rotations in radians, position vector convention.
+	 */
+	double rotationX, rotationY, rotationZ;
+	/**
+	 * The scale difference in parts per million.
+	 */
+	double scaleDifference;
+	/**
+	 * The grids shifting to WGS84, used instead of the Helmert transformation, or null.
+	 */
+	GridShiftFile[] grids;
+
     public static Datum[] datums = {
 	    new Datum("ADINDAN", Ellipsoid.CLARKE_1880, -162, -12, -206),
 	    new Datum("ARC1950", Ellipsoid.CLARKE_1880, -143, -90, -294),
@@ -34,7 +59,7 @@ public class Datum {
 	    new Datum("Australian Geodetic 984", Ellipsoid.AUSTRALIAN, -134, -48, 149),
 	    new Datum("CAMP_AREA_ASTRO", Ellipsoid.INTERNATIONAL_1967, -104, -129, 239),
 	    new Datum("Cape", Ellipsoid.CLARKE_1880, -136, -108, -292),
-	    new Datum("European Datum 1950", Ellipsoid.INTERNATIONAL_1967, -87, -98, -121),
+	    new Datum("ED50", "European Datum 1950", Ellipsoid.INTERNATIONAL_1967, -87, -98, -121),
 	    new Datum("European Datum 1979", Ellipsoid.INTERNATIONAL_1967, -86, -98, -119),
 	    new Datum("Geodetic Datum 1949", Ellipsoid.INTERNATIONAL_1967, 84, -22, 209),
 	    new Datum("Hong Kong 1963", Ellipsoid.INTERNATIONAL_1967, -156, -271, -189),
@@ -44,7 +69,7 @@ public class Datum {
 	    new Datum("NAD83", Ellipsoid.GRS_1980, 0, 0, 0),
 	    new Datum("Old Hawaiian mean", Ellipsoid.CLARKE_1866, 89, -279, -183),
 	    new Datum("OMAN", Ellipsoid.CLARKE_1880, -346, -1, 224),
-	    new Datum("Ordnance Survey 1936", Ellipsoid.AIRY, 375, -111, 431),
+	    new Datum("OSGB36", "Ordnance Survey 1936", Ellipsoid.AIRY, 375, -111, 431),
 	    new Datum("Puerto Rico", Ellipsoid.CLARKE_1866, 11, 72, -101),
 	    new Datum("Pulkovo 1942", Ellipsoid.KRASOVSKY, 27, -135, -89),
 	    new Datum("PROVISIONAL_S_AMERICAN_1956", Ellipsoid.INTERNATIONAL_1967, -288, 175, -376),
@@ -54,10 +79,281 @@ public class Datum {
 	};
 
 	public Datum(String name, Ellipsoid ellipsoid, double deltaX, double deltaY, double deltaZ) {
+		this(name, name, ellipsoid, deltaX, deltaY, deltaZ);
+	}
+
+	public Datum(String shortName, String name, Ellipsoid ellipsoid, double deltaX, double deltaY, double deltaZ) {
+		this.shortName = shortName;
 		this.name = name;
 		this.ellipsoid = ellipsoid;
 		this.deltaX = deltaX;
 		this.deltaY = deltaY;
 		this.deltaZ = deltaZ;
 	}
+
+	/**
+	 * Create a datum from PROJ.4 +towgs84 parameters: three translations in
+	 * metres, optionally followed by three rotations in seconds of arc and a
+	 * scale difference in parts per million.
+	 */
+	public Datum(String name, Ellipsoid ellipsoid, double[] toWGS84) {
+		this(name, ellipsoid, toWGS84[0], toWGS84[1], toWGS84[2]);
+		if (toWGS84.length == 7) {
+			rotationX = toWGS84[3] * SEC_TO_RAD;
+			rotationY = toWGS84[4] * SEC_TO_RAD;
+			rotationZ = toWGS84[5] * SEC_TO_RAD;
+			scaleDifference = toWGS84[6];
+		} else if (toWGS84.length != 3) {
+			throw new IllegalArgumentException("towgs84 needs 3 or 7 parameters");
+		}
+	}
+
+	/**
+	 * Create a datum shifted to WGS84 with a list of grids, as in the PROJ.4
+	 * +nadgrids parameter. Each point is shifted with the first grid covering it.
+	 */
+	public Datum(String name, Ellipsoid ellipsoid, GridShiftFile[] grids) {
+		this(name, ellipsoid, 0, 0, 0);
+		this.grids = grids;
+	}
+
+	/**
+	 * Returns this datum if it has the passed ellipsoid, or else a datum with
+	 * the same transformation to WGS84 on the passed ellipsoid.
+	 */
+	public Datum withEllipsoid(Ellipsoid ellipsoid) {
+		if (ellipsoid.equatorRadius == this.ellipsoid.equatorRadius
+			&& ellipsoid.eccentricity2 == this.ellipsoid.eccentricity2)
+			return this;
+		Datum datum = new Datum(shortName, name, ellipsoid, deltaX, deltaY, deltaZ);
+		datum.rotationX = rotationX;
+		datum.rotationY = rotationY;
+		datum.rotationZ = rotationZ;
+		datum.scaleDifference = scaleDifference;
+		datum.grids = grids;
+		return datum;
+	}
+
+	/**
+	 * Returns the datum with the passed short name or name, ignoring case, or null.
+	 */
+	public static Datum findDatum(String name) {
+		for (int i = 0; i < datums.length; i++) {
+			if (datums[i].shortName.equalsIgnoreCase(name) || datums[i].name.equalsIgnoreCase(name))
+				return datums[i];
+		}
+		return null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getShortName() {
+		return shortName;
+	}
+
+	public Ellipsoid getEllipsoid() {
+		return ellipsoid;
+	}
+
+	/**
+	 * Returns the parameters of the transformation to WGS84 in PROJ.4 +towgs84 units.
+	 */
+	public double[] getToWGS84() {
+		return new double[] {
+			deltaX, deltaY, deltaZ,
+			rotationX / SEC_TO_RAD, rotationY / SEC_TO_RAD, rotationZ / SEC_TO_RAD,
+			scaleDifference
+		};
+	}
+
+	/**
+	 * Returns the grids shifting to WGS84, or null if the Helmert transformation is used.
+	 */
+	public GridShiftFile[] getGrids() {
+		return grids;
+	}
+
+	/**
+	 * Returns true if the transformation to WGS84 has only translations.
+	 */
+	public boolean isThreeParameter() {
+		return rotationX == 0 && rotationY == 0 && rotationZ == 0 && scaleDifference == 0;
+	}
+
+	/**
+	 * Returns true if the transformation to WGS84 is the identity.
+	 */
+	public boolean isIdentity() {
+		return deltaX == 0 && deltaY == 0 && deltaZ == 0 && isThreeParameter() && grids == null;
+	}
+
+	/**
+	 * Returns true if both datums have the same ellipsoid and transformation
+	 * to WGS84, or false if datum is null.
+	 */
+	public boolean isEquivalent(Datum datum) {
+		return datum != null
+			&& ellipsoid.equatorRadius == datum.ellipsoid.equatorRadius
+			&& ellipsoid.eccentricity2 == datum.ellipsoid.eccentricity2
+			&& deltaX == datum.deltaX && deltaY == datum.deltaY && deltaZ == datum.deltaZ
+			&& rotationX == datum.rotationX && rotationY == datum.rotationY && rotationZ == datum.rotationZ
+			&& scaleDifference == datum.scaleDifference
+			&& java.util.Arrays.equals(grids, datum.grids);
+	}
+
+	/**
+	 * Transform geocentric X/Y/Z triples of this datum to WGS84, in place.
+	 */
+	public void toWGS84(double[] xyz, int offset, int numPoints) {
+		final double dx = deltaX, dy = deltaY, dz = deltaZ;
+		if (isThreeParameter()) {
+			for (int i = 0; i < numPoints; i++) {
+				xyz[offset++] += dx;
+				xyz[offset++] += dy;
+				xyz[offset++] += dz;
+			}
+			return;
+		}
+		final double rx = rotationX, ry = rotationY, rz = rotationZ;
+		final double m = 1 + scaleDifference * 1e-6;
+		for (int i = 0; i < numPoints; i++) {
+			double x = xyz[offset];
+			double y = xyz[offset + 1];
+			double z = xyz[offset + 2];
+			xyz[offset++] = m * (x - rz * y + ry * z) + dx;
+			xyz[offset++] = m * (rz * x + y - rx * z) + dy;
+			xyz[offset++] = m * (-ry * x + rx * y + z) + dz;
+		}
+	}
+
+	/**
+	 * Transform geocentric X/Y/Z triples from WGS84 to this datum, in place.
+	 */
+	public void fromWGS84(double[] xyz, int offset, int numPoints) {
+		final double dx = deltaX, dy = deltaY, dz = deltaZ;
+		if (isThreeParameter()) {
+			for (int i = 0; i < numPoints; i++) {
+				xyz[offset++] -= dx;
+				xyz[offset++] -= dy;
+				xyz[offset++] -= dz;
+			}
+			return;
+		}
+		final double rx = rotationX, ry = rotationY, rz = rotationZ;
+		final double m = 1 + scaleDifference * 1e-6;
+		for (int i = 0; i < numPoints; i++) {
+			double x = (xyz[offset] - dx) / m;
+			double y = (xyz[offset + 1] - dy) / m;
+			double z = (xyz[offset + 2] - dz) / m;
+			xyz[offset++] = x + rz * y - ry * z;
+			xyz[offset++] = -rz * x + y + rx * z;
+			xyz[offset++] = ry * x - rx * y + z;
+		}
+	}
+
+	/**
+	 * Transform geodetic lon/lat/height triples from this datum to another
+	 * datum, through geocentric coordinates and WGS84. Grid shifts are
+	 * applied to the geodetic coordinates and leave the heights unchanged;
+	 * points outside the grids are set to NaN.
+	 */
+	public void transform(Datum target, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints) {
+		if (isEquivalent(target)) {
+			if (src != dst || srcOffset != dstOffset)
+				System.arraycopy(src, srcOffset, dst, dstOffset, 3 * numPoints);
+			return;
+		}
+		if (grids != null || target.grids != null) {
+			transformWithGrids(target, src, srcOffset, dst, dstOffset, numPoints);
+			return;
+		}
+		Geocentric.toGeocentric(ellipsoid, src, srcOffset, dst, dstOffset, numPoints);
+		if (!isEquivalentShift(target)) {
+			toWGS84(dst, dstOffset, numPoints);
+			target.fromWGS84(dst, dstOffset, numPoints);
+		}
+		Geocentric.toGeodetic(target.ellipsoid, dst, dstOffset, dst, dstOffset, numPoints);
+	}
+
+	private void transformWithGrids(Datum target, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints) {
+		if (src != dst || srcOffset != dstOffset)
+			System.arraycopy(src, srcOffset, dst, dstOffset, 3 * numPoints);
+		if (grids != null) {
+			GridShiftFile.shift(grids, false, dst, dstOffset, 3, numPoints);
+		} else {
+			Geocentric.toGeocentric(ellipsoid, dst, dstOffset, dst, dstOffset, numPoints);
+			toWGS84(dst, dstOffset, numPoints);
+			Geocentric.toGeodetic(Ellipsoid.WGS_1984, dst, dstOffset, dst, dstOffset, numPoints);
+		}
+		if (target.grids != null) {
+			GridShiftFile.shift(target.grids, true, dst, dstOffset, 3, numPoints);
+		} else {
+			Geocentric.toGeocentric(Ellipsoid.WGS_1984, dst, dstOffset, dst, dstOffset, numPoints);
+			target.fromWGS84(dst, dstOffset, numPoints);
+			Geocentric.toGeodetic(target.ellipsoid, dst, dstOffset, dst, dstOffset, numPoints);
+		}
+	}
+
+	private boolean isEquivalentShift(Datum datum) {
+		return deltaX == datum.deltaX && deltaY == datum.deltaY && deltaZ == datum.deltaZ
+			&& rotationX == datum.rotationX && rotationY == datum.rotationY && rotationZ == datum.rotationZ
+			&& scaleDifference == datum.scaleDifference;
+	}
+
+	/**
+	 * Transform geodetic lon/lat/height triples from this datum to another
+	 * datum with the Molodensky formulas, without going through geocentric
+	 * coordinates. Only the translations of the datums are used. The
+	 * abridged formulas are faster and less accurate, and do not use the
+	 * heights.
+	 */
+	public void molodensky(Datum target, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints, boolean abridged) {
+		final double a = ellipsoid.equatorRadius;
+		final double es = ellipsoid.eccentricity2;
+		final double f = 1 - Math.sqrt(1 - es);
+		final double b = a * (1 - f);
+		final double da = target.ellipsoid.equatorRadius - a;
+		final double df = 1 - Math.sqrt(1 - target.ellipsoid.eccentricity2) - f;
+		final double dx = deltaX - target.deltaX;
+		final double dy = deltaY - target.deltaY;
+		final double dz = deltaZ - target.deltaZ;
+		final double DTR = Math.PI / 180;
+		final double RTD = 180 / Math.PI;
+		for (int i = 0; i < numPoints; i++) {
+			double lon = src[srcOffset++] * DTR;
+			double lat = src[srcOffset++] * DTR;
+			double h = src[srcOffset++];
+			double sinLat = Math.sin(lat);
+			double cosLat = Math.cos(lat);
+			double sinLon = Math.sin(lon);
+			double cosLon = Math.cos(lon);
+			double w = 1 - es * sinLat * sinLat;
+			// radii of curvature in the meridian and the prime vertical
+			double rm = a * (1 - es) / (w * Math.sqrt(w));
+			double rn = a / Math.sqrt(w);
+			double t = -dx * sinLat * cosLon - dy * sinLat * sinLon + dz * cosLat;
+			double u = dx * cosLat * cosLon + dy * cosLat * sinLon + dz * sinLat;
+			double dLat, dLon, dh;
+			if (abridged) {
+				double c = a * df + f * da;
+				dLat = (t + c * 2 * sinLat * cosLat) / rm;
+				dLon = (-dx * sinLon + dy * cosLon) / (rn * cosLat);
+				dh = u + c * sinLat * sinLat - da;
+			} else {
+				dLat = (t + da * rn * es * sinLat * cosLat / a
+					+ df * (rm * a / b + rn * b / a) * sinLat * cosLat) / (rm + h);
+				dLon = (-dx * sinLon + dy * cosLon) / ((rn + h) * cosLat);
+				dh = u - da * a / rn + df * b / a * rn * sinLat * sinLat;
+			}
+			dst[dstOffset++] = (lon + dLon) * RTD;
+			dst[dstOffset++] = (lat + dLat) * RTD;
+			dst[dstOffset++] = h + dh;
+		}
+	}
+
+	public String toString() {
+		return name;
+	}
 }
@@ -0,0 +1,115 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.jhlabs.map;
+
+/**
+ * Conversions between geodetic and geocentric (earth-centred, earth-fixed)
+ * coordinates on an ellipsoid. Geodetic coordinates are lon/lat in degrees
+ * and ellipsoidal height in metres, geocentric coordinates are X/Y/Z in
+ * metres, both as interleaved triples in double arrays. Source and
+ * destination arrays may be the same.
+ *
+ * The inverse uses the closed form solution of Vermeille, without
+ * iteration, and is accurate to well below a millimetre everywhere. In the
+ * equatorial plane within a.e^2 of the axis, inside the evolute of the
+ * ellipsoid, the nearest points of the ellipsoid are off the equator, and
+ * the one in the north is returned; the centre is below the north pole.
+ *
+ * Reference: H. Vermeille, An analytical method to transform geocentric into
+ * geodetic coordinates, Journal of Geodesy 85, 2011.
+ */
+public class Geocentric {
+
+	private final static double DTR = Math.PI / 180;
+	private final static double RTD = 180 / Math.PI;
+
+	/**
+	 * Convert geodetic lon/lat/height triples to geocentric X/Y/Z triples.
+	 */
+	public static void toGeocentric(Ellipsoid ellipsoid, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints) {
+		final double a = ellipsoid.equatorRadius;
+		final double es = ellipsoid.eccentricity2;
+		final double one_es = 1 - es;
+		for (int i = 0; i < numPoints; i++) {
+			double lon = src[srcOffset++] * DTR;
+			double lat = src[srcOffset++] * DTR;
+			double h = src[srcOffset++];
+			double sinLat = Math.sin(lat);
+			double cosLat = Math.cos(lat);
+			// prime vertical radius of curvature
+			double n = a / Math.sqrt(1 - es * sinLat * sinLat);
+			double r = (n + h) * cosLat;
+			dst[dstOffset++] = r * Math.cos(lon);
+			dst[dstOffset++] = r * Math.sin(lon);
+			dst[dstOffset++] = (n * one_es + h) * sinLat;
+		}
+	}
+
+	/**
+	 * Convert geocentric X/Y/Z triples to geodetic lon/lat/height triples.
+	 */
+	public static void toGeodetic(Ellipsoid ellipsoid, double[] src, int srcOffset, double[] dst, int dstOffset, int numPoints) {
+		final double a = ellipsoid.equatorRadius;
+		final double es = ellipsoid.eccentricity2;
+		final double e4 = es * es;
+		final double ra2 = 1 / (a * a);
+		final double one_es = 1 - es;
+		for (int i = 0; i < numPoints; i++) {
+			double x = src[srcOffset++];
+			double y = src[srcOffset++];
+			double z = src[srcOffset++];
+			double xy2 = x * x + y * y;
+			double xy = Math.sqrt(xy2);
+			double p = xy2 * ra2;
+			double q = one_es * z * z * ra2;
+			if (q == 0 && p < e4) {
+				// the normals of a parallel meet in the equatorial plane
+				double cos2 = p * one_es / (es * (es - p));
+				double sinLat = Math.sqrt(1 - cos2);
+				double n = a / Math.sqrt(1 - es * sinLat * sinLat);
+				dst[dstOffset++] = Math.atan2(y, x) * RTD;
+				dst[dstOffset++] = Math.atan2(sinLat, Math.sqrt(cos2)) * RTD;
+				dst[dstOffset++] = -n * one_es;
+				continue;
+			}
+			double r = (p + q - e4) / 6;
+			double e4pq = e4 * p * q;
+			double evolute = 8 * r * r * r + e4pq;
+			double u;
+			if (evolute > 0) {
+				// outside the evolute, which is everywhere but near the centre
+				double sqrtEvolute = Math.sqrt(evolute);
+				double sqrtE4pq = Math.sqrt(e4pq);
+				double c1 = Math.cbrt(sqrtEvolute + sqrtE4pq);
+				double c2 = Math.cbrt(sqrtEvolute - sqrtE4pq);
+				u = r + 0.5 * c1 * c1 + 0.5 * c2 * c2;
+			} else {
+				double t = 2 * Math.atan2(Math.sqrt(e4pq), Math.sqrt(-evolute) + Math.sqrt(-8 * r * r * r));
+				u = -4 * r * Math.sin(t / 3) * Math.cos(Math.PI / 6 + t / 3);
+			}
+			double v = Math.sqrt(u * u + e4 * q);
+			double w = es * (u + v - q) / (2 * v);
+			double k = (u + v) / (Math.sqrt(w * w + u + v) + w);
+			double d = k * xy / (k + es);
+			double dz = Math.sqrt(d * d + z * z);
+			dst[dstOffset++] = Math.atan2(y, x) * RTD;
+			dst[dstOffset++] = 2 * Math.atan2(z, dz + d) * RTD;
+			dst[dstOffset++] = (k + es - 1) / k * dz;
+		}
+	}
+
+}
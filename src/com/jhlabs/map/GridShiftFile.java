@@ -0,0 +1,561 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.jhlabs.map;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A datum shift grid in NTv2 (.gsb) or NADCON (.las/.los) format, as used by
+ * the PROJ.4 +nadgrids parameter. The name "null" is a grid with zero shift
+ * covering the whole world.
+ *
+ * Files are memory mapped and decoded in tiles only where points fall. The
+ * decoded tiles are kept in an LRU cache shared by all grids, so a national
+ * grid costs a few MB of memory however large the file is. Sub-grids are
+ * found through a bucket index of the top level sub-grids and the NTv2
+ * parent/child tree below them.
+ *
+ * Files are looked up by name in the directory given by the proj.lib system
+ * property, then in the PROJ_LIB directory, then in the current directory.
+ */
+public class GridShiftFile implements Serializable {
+
+	/**
+	 * The number of grid cells in each direction of a tile.
+	 */
+	private final static int TILE_SIZE = 64;
+	private final static int TILE_STRIDE = TILE_SIZE + 1;
+	private final static int MAX_ITERATIONS = 10;
+	private final static double TOLERANCE = 1e-12;
+	private final static double SEC_TO_RAD = Math.PI / (180 * 3600);
+	private final static double DTR = Math.PI / 180;
+	private final static double RTD = 180 / Math.PI;
+
+	private static int maxCachedTiles = 128;
+	private static int nextId = 0;
+	private static Map<String, GridShiftFile> files = new HashMap<String, GridShiftFile>();
+	/**
+	 * The errors of the files which could not be opened, guarded by files.
+	 */
+	private static Map<String, IOException> failures = new HashMap<String, IOException>();
+	private static LinkedHashMap<Long, float[]> cache = new LinkedHashMap<Long, float[]>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+			return size() > maxCachedTiles;
+		}
+	};
+
+	private String name;
+	private transient int id;
+	private transient boolean isNull;
+	private transient boolean isNTv2;
+	/**
+	 * Radians per unit of the shifts in the file.
+	 */
+	private transient double shiftUnits = SEC_TO_RAD;
+	private transient ByteBuffer buffer, lonBuffer;
+	private transient SubGrid[] subGrids;
+	private transient double minLon, minLat, maxLon, maxLat;
+	private transient double bucketWidth, bucketHeight;
+	private transient int bucketColumns, bucketRows;
+	private transient SubGrid[][] buckets;
+
+	/**
+	 * A rectangular grid of shifts. Longitudes are positive east and all
+	 * angles are in radians.
+	 */
+	private static class SubGrid {
+		String name, parent;
+		int index;
+		double minLon, minLat, maxLon, maxLat;
+		double lonInc, latInc;
+		int columns, rows;
+		int tileColumns;
+		/**
+		 * The byte offset of the first node in the buffer.
+		 */
+		int offset;
+		SubGrid[] children = new SubGrid[0];
+
+		boolean contains(double lon, double lat) {
+			return lon >= minLon && lon <= maxLon && lat >= minLat && lat <= maxLat;
+		}
+	}
+
+	/**
+	 * The state of a batch lookup: the last tile used and the last shift.
+	 */
+	private static class Cursor {
+		GridShiftFile file;
+		SubGrid grid;
+		int tileRow, tileColumn;
+		float[] tile;
+		double dlon, dlat;
+	}
+
+	/**
+	 * Returns the grid with the passed file name, opening and indexing the
+	 * file the first time it is asked for. A file which cannot be opened is
+	 * not tried again, so that a missing optional grid is only searched for
+	 * once; the same error is thrown instead.
+	 */
+	public static GridShiftFile open(String name) throws IOException {
+		synchronized (files) {
+			GridShiftFile file = files.get(name);
+			if (file == null) {
+				IOException failure = failures.get(name);
+				if (failure != null)
+					throw new IOException(failure.getMessage(), failure);
+				try {
+					file = new GridShiftFile(name);
+				} catch (IOException e) {
+					failures.put(name, e);
+					throw e;
+				}
+				files.put(name, file);
+			}
+			return file;
+		}
+	}
+
+	/**
+	 * Set the number of decoded tiles kept in memory. Each tile takes about 34K.
+	 */
+	public static void setMaxCachedTiles(int maxCachedTiles) {
+		synchronized (cache) {
+			GridShiftFile.maxCachedTiles = maxCachedTiles;
+			Iterator<Long> it = cache.keySet().iterator();
+			for (int n = cache.size(); n > maxCachedTiles; n--) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public static int getMaxCachedTiles() {
+		return maxCachedTiles;
+	}
+
+	private GridShiftFile(String name) throws IOException {
+		this.name = name;
+		id = nextId++;
+		if (name.equals("null")) {
+			isNull = true;
+			return;
+		}
+		String lower = name.toLowerCase();
+		String base = null;
+		if (lower.endsWith(".las") || lower.endsWith(".los"))
+			base = name.substring(0, name.length() - 4);
+		else if (lower.indexOf('.') == -1 && findFile(name + ".las") != null)
+			base = name;
+		if (base != null) {
+			buffer = map(base + ".las");
+			lonBuffer = map(base + ".los");
+			readNADCON();
+		} else {
+			buffer = map(name);
+			isNTv2 = true;
+			readNTv2();
+		}
+		buildIndex();
+	}
+
+	private Object readResolve() throws ObjectStreamException {
+		try {
+			return open(name);
+		}
+		catch (IOException e) {
+			throw new InvalidObjectException(e.getMessage());
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	private static File findFile(String name) {
+		File file = new File(name);
+		if (file.isAbsolute())
+			return file.exists() ? file : null;
+		String[] dirs = { System.getProperty("proj.lib"), System.getenv("PROJ_LIB"), "." };
+		for (int i = 0; i < dirs.length; i++) {
+			if (dirs[i] != null) {
+				file = new File(dirs[i], name);
+				if (file.exists())
+					return file;
+			}
+		}
+		return null;
+	}
+
+	private static ByteBuffer map(String name) throws IOException {
+		File file = findFile(name);
+		if (file == null)
+			throw new FileNotFoundException("Grid shift file not found: " + name);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static String readString(ByteBuffer b, int offset, int length) {
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++)
+			c[i] = (char)(b.get(offset + i) & 0xff);
+		return new String(c).trim();
+	}
+
+	/**
+	 * Read the headers of an NTv2 file. Each header is a list of 16 byte
+	 * records of an 8 character key and a value. The nodes are records of
+	 * four floats, the latitude and longitude shifts and their accuracies in
+	 * the units given by GS_TYPE, rows running south to north and nodes within a row east
+	 * to west. Longitudes are positive west.
+	 */
+	private void readNTv2() throws IOException {
+		ByteBuffer b = buffer;
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		if (b.getInt(8) != 11)
+			b.order(ByteOrder.BIG_ENDIAN);
+		if (b.getInt(8) != 11)
+			throw new IOException("Not an NTv2 file: " + name);
+		int count = b.getInt(2 * 16 + 8);
+		String type = readString(b, 3 * 16 + 8, 8);
+		double units;
+		if (type.equals("SECONDS"))
+			units = SEC_TO_RAD;
+		else if (type.equals("MINUTES"))
+			units = 60 * SEC_TO_RAD;
+		else if (type.equals("DEGREES"))
+			units = DTR;
+		else
+			throw new IOException("Unknown NTv2 units " + type + ": " + name);
+		shiftUnits = units;
+
+		subGrids = new SubGrid[count];
+		int offset = 11 * 16;
+		for (int i = 0; i < count; i++) {
+			if (!readString(b, offset, 8).equals("SUB_NAME"))
+				throw new IOException("Bad NTv2 sub-grid header: " + name);
+			SubGrid g = new SubGrid();
+			g.index = i;
+			g.name = readString(b, offset + 8, 8);
+			g.parent = readString(b, offset + 16 + 8, 8);
+			g.minLat = b.getDouble(offset + 4 * 16 + 8) * units;
+			g.maxLat = b.getDouble(offset + 5 * 16 + 8) * units;
+			g.maxLon = -b.getDouble(offset + 6 * 16 + 8) * units;
+			g.minLon = -b.getDouble(offset + 7 * 16 + 8) * units;
+			g.latInc = b.getDouble(offset + 8 * 16 + 8) * units;
+			g.lonInc = b.getDouble(offset + 9 * 16 + 8) * units;
+			int nodes = b.getInt(offset + 10 * 16 + 8);
+			g.columns = (int)Math.round((g.maxLon - g.minLon) / g.lonInc) + 1;
+			g.rows = (int)Math.round((g.maxLat - g.minLat) / g.latInc) + 1;
+			if (g.columns * g.rows != nodes || g.columns < 2 || g.rows < 2)
+				throw new IOException("Bad NTv2 sub-grid size: " + name + " " + g.name);
+			g.offset = offset + 11 * 16;
+			offset = g.offset + nodes * 16;
+			if (offset > b.capacity())
+				throw new IOException("Truncated NTv2 file: " + name);
+			subGrids[i] = g;
+		}
+	}
+
+	/**
+	 * Read the headers of a pair of NADCON files. Both files have records of
+	 * the same length, a header record followed by one record for each row
+	 * from south to north. A row record is an unused int followed by a float
+	 * in seconds for each node from west to east. Longitude shifts are
+	 * positive west.
+	 */
+	private void readNADCON() throws IOException {
+		SubGrid g = new SubGrid();
+		for (int k = 0; k < 2; k++) {
+			ByteBuffer b = k == 0 ? buffer : lonBuffer;
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			int columns = b.getInt(64);
+			if (columns <= 0 || columns > 1000000)
+				b.order(ByteOrder.BIG_ENDIAN);
+			columns = b.getInt(64);
+			int rows = b.getInt(68);
+			if (columns < 2 || rows < 2 || (long)(columns + 1) * (rows + 1) * 4 > b.capacity())
+				throw new IOException("Not a NADCON file: " + name);
+			if (k == 0) {
+				g.name = name;
+				g.parent = "NONE";
+				g.columns = columns;
+				g.rows = rows;
+				g.minLon = b.getFloat(76) * DTR;
+				g.lonInc = b.getFloat(80) * DTR;
+				g.minLat = b.getFloat(84) * DTR;
+				g.latInc = b.getFloat(88) * DTR;
+				g.maxLon = g.minLon + (columns - 1) * g.lonInc;
+				g.maxLat = g.minLat + (rows - 1) * g.latInc;
+				g.offset = (columns + 1) * 4 + 4;
+			} else if (columns != g.columns || rows != g.rows) {
+				throw new IOException("NADCON .las and .los files do not match: " + name);
+			}
+		}
+		subGrids = new SubGrid[] { g };
+	}
+
+	/**
+	 * Link the sub-grids to their parents and put the top level sub-grids
+	 * into buckets.
+	 */
+	private void buildIndex() {
+		Map<String, SubGrid> names = new HashMap<String, SubGrid>();
+		for (int i = 0; i < subGrids.length; i++)
+			names.put(subGrids[i].name, subGrids[i]);
+		List<SubGrid> top = new ArrayList<SubGrid>();
+		for (int i = 0; i < subGrids.length; i++) {
+			SubGrid g = subGrids[i];
+			g.tileColumns = (g.columns - 2) / TILE_SIZE + 1;
+			SubGrid parent = names.get(g.parent);
+			if (parent == null || parent == g) {
+				top.add(g);
+			} else {
+				SubGrid[] children = new SubGrid[parent.children.length + 1];
+				System.arraycopy(parent.children, 0, children, 0, parent.children.length);
+				children[parent.children.length] = g;
+				parent.children = children;
+			}
+		}
+
+		minLon = minLat = Double.MAX_VALUE;
+		maxLon = maxLat = -Double.MAX_VALUE;
+		for (int i = 0; i < top.size(); i++) {
+			SubGrid g = top.get(i);
+			minLon = Math.min(minLon, g.minLon);
+			minLat = Math.min(minLat, g.minLat);
+			maxLon = Math.max(maxLon, g.maxLon);
+			maxLat = Math.max(maxLat, g.maxLat);
+		}
+		int n = (int)Math.ceil(Math.sqrt(top.size()));
+		bucketColumns = bucketRows = n;
+		bucketWidth = (maxLon - minLon) / n;
+		bucketHeight = (maxLat - minLat) / n;
+		// count the sub-grids in each bucket, then fill the buckets
+		int[] counts = new int[n * n];
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1) {
+				buckets = new SubGrid[n * n][];
+				for (int k = 0; k < buckets.length; k++) {
+					buckets[k] = new SubGrid[counts[k]];
+					counts[k] = 0;
+				}
+			}
+			for (int i = 0; i < top.size(); i++) {
+				SubGrid g = top.get(i);
+				int c0 = bucketColumn(g.minLon), c1 = bucketColumn(g.maxLon);
+				int r0 = bucketRow(g.minLat), r1 = bucketRow(g.maxLat);
+				for (int r = r0; r <= r1; r++) {
+					for (int c = c0; c <= c1; c++) {
+						int k = r * n + c;
+						if (pass == 1)
+							buckets[k][counts[k]] = g;
+						counts[k]++;
+					}
+				}
+			}
+		}
+	}
+
+	private int bucketColumn(double lon) {
+		int c = bucketWidth > 0 ? (int)((lon - minLon) / bucketWidth) : 0;
+		return c < 0 ? 0 : c >= bucketColumns ? bucketColumns - 1 : c;
+	}
+
+	private int bucketRow(double lat) {
+		int r = bucketHeight > 0 ? (int)((lat - minLat) / bucketHeight) : 0;
+		return r < 0 ? 0 : r >= bucketRows ? bucketRows - 1 : r;
+	}
+
+	/**
+	 * Returns the most detailed sub-grid containing a point, or null.
+	 */
+	private SubGrid find(double lon, double lat) {
+		if (!(lon >= minLon && lon <= maxLon && lat >= minLat && lat <= maxLat))
+			return null;
+		SubGrid[] candidates = buckets[bucketRow(lat) * bucketColumns + bucketColumn(lon)];
+		for (int i = 0; i < candidates.length; i++) {
+			SubGrid g = candidates[i];
+			if (g.contains(lon, lat)) {
+				SubGrid[] children = g.children;
+				for (int j = 0; j < children.length; j++) {
+					if (children[j].contains(lon, lat)) {
+						g = children[j];
+						children = g.children;
+						j = -1;
+					}
+				}
+				return g;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a tile of (TILE_SIZE+1)^2 nodes as pairs of longitude and
+	 * latitude shifts in the units of the file, longitude positive east, rows south to
+	 * north and nodes west to east.
+	 */
+	private float[] getTile(SubGrid g, int tileRow, int tileColumn) {
+		Long key = Long.valueOf(((long)id << 48) | ((long)g.index << 32) | (tileRow * g.tileColumns + tileColumn));
+		float[] tile;
+		synchronized (cache) {
+			tile = cache.get(key);
+		}
+		if (tile != null)
+			return tile;
+		tile = new float[2 * TILE_STRIDE * TILE_STRIDE];
+		int r0 = tileRow * TILE_SIZE;
+		int c0 = tileColumn * TILE_SIZE;
+		int rows = Math.min(TILE_STRIDE, g.rows - r0);
+		int columns = Math.min(TILE_STRIDE, g.columns - c0);
+		for (int r = 0; r < rows; r++) {
+			int i = 2 * r * TILE_STRIDE;
+			if (isNTv2) {
+				int offset = g.offset + ((r0 + r) * g.columns + g.columns - 1 - c0) * 16;
+				for (int c = 0; c < columns; c++, offset -= 16) {
+					tile[i++] = -buffer.getFloat(offset + 4);
+					tile[i++] = buffer.getFloat(offset);
+				}
+			} else {
+				int offset = g.offset + (r0 + r) * (g.columns + 1) * 4 + c0 * 4;
+				for (int c = 0; c < columns; c++, offset += 4) {
+					tile[i++] = -lonBuffer.getFloat(offset);
+					tile[i++] = buffer.getFloat(offset);
+				}
+			}
+		}
+		synchronized (cache) {
+			cache.put(key, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Bilinearly interpolate the shift at a point in a sub-grid into the cursor.
+	 */
+	private void interpolate(SubGrid g, double lon, double lat, Cursor cursor) {
+		double x = (lon - g.minLon) / g.lonInc;
+		double y = (lat - g.minLat) / g.latInc;
+		int column = (int)x;
+		int row = (int)y;
+		if (column > g.columns - 2)
+			column = g.columns - 2;
+		if (row > g.rows - 2)
+			row = g.rows - 2;
+		x -= column;
+		y -= row;
+		int tileRow = row / TILE_SIZE;
+		int tileColumn = column / TILE_SIZE;
+		if (cursor.file != this || cursor.grid != g || cursor.tileRow != tileRow || cursor.tileColumn != tileColumn) {
+			cursor.tile = getTile(g, tileRow, tileColumn);
+			cursor.file = this;
+			cursor.grid = g;
+			cursor.tileRow = tileRow;
+			cursor.tileColumn = tileColumn;
+		}
+		float[] t = cursor.tile;
+		int i = 2 * ((row - tileRow * TILE_SIZE) * TILE_STRIDE + column - tileColumn * TILE_SIZE);
+		int j = i + 2 * TILE_STRIDE;
+		double m00 = (1 - x) * (1 - y);
+		double m10 = x * (1 - y);
+		double m01 = (1 - x) * y;
+		double m11 = x * y;
+		cursor.dlon = (m00 * t[i] + m10 * t[i + 2] + m01 * t[j] + m11 * t[j + 2]) * shiftUnits;
+		cursor.dlat = (m00 * t[i + 1] + m10 * t[i + 3] + m01 * t[j + 1] + m11 * t[j + 3]) * shiftUnits;
+	}
+
+	/**
+	 * Find the shift at a point in the first grid covering it, and return that grid or null.
+	 */
+	private static GridShiftFile lookup(GridShiftFile[] grids, double lon, double lat, Cursor cursor) {
+		for (int i = 0; i < grids.length; i++) {
+			GridShiftFile file = grids[i];
+			if (file.isNull) {
+				cursor.dlon = cursor.dlat = 0;
+				return file;
+			}
+			SubGrid g = file.find(lon, lat);
+			if (g != null) {
+				file.interpolate(g, lon, lat, cursor);
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Shift lon/lat points in degrees with a list of grids, each point with
+	 * the first grid covering it. The inverse shift is found by iteration.
+	 * Points not covered by any grid are set to NaN.
+	 * @param stride the number of values from one point to the next, 2 for
+	 * lon/lat pairs or 3 for triples with heights
+	 * @return the number of points not covered
+	 */
+	public static int shift(GridShiftFile[] grids, boolean inverse, double[] points, int offset, int stride, int numPoints) {
+		Cursor cursor = new Cursor();
+		int failed = 0;
+		for (int k = 0; k < numPoints; k++, offset += stride) {
+			double lon = points[offset] * DTR;
+			double lat = points[offset + 1] * DTR;
+			GridShiftFile file = lookup(grids, lon, lat, cursor);
+			if (file == null) {
+				points[offset] = points[offset + 1] = Double.NaN;
+				failed++;
+				continue;
+			}
+			if (file.isNull)
+				continue;
+			if (inverse) {
+				double tlon = lon - cursor.dlon;
+				double tlat = lat - cursor.dlat;
+				for (int i = 0; i < MAX_ITERATIONS; i++) {
+					if (lookup(grids, tlon, tlat, cursor) == null)
+						break;
+					double difLon = tlon + cursor.dlon - lon;
+					double difLat = tlat + cursor.dlat - lat;
+					tlon -= difLon;
+					tlat -= difLat;
+					if (Math.abs(difLon) < TOLERANCE && Math.abs(difLat) < TOLERANCE)
+						break;
+				}
+				lon = tlon;
+				lat = tlat;
+			} else {
+				lon += cursor.dlon;
+				lat += cursor.dlat;
+			}
+			points[offset] = lon * RTD;
+			points[offset + 1] = lat * RTD;
+		}
+		return failed;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
@@ -371,6 +371,85 @@ public class MapMath {
 		return phi;
 	}
 
+	/**
+	 * Coefficients of the series between geodetic latitude and conformal
+	 * latitude, to be passed to tsfn(double, double[]) and phi2(double, double[]).
+	 * The series are truncated after the e^8 terms, which is accurate to
+	 * about 1e-11 radians for terrestrial ellipsoids.
+	 * The first four coefficients convert from geodetic to conformal latitude,
+	 * the last four from conformal to geodetic latitude.
+	 */
+	public static double[] confset(double es) {
+		double es2 = es * es, es3 = es2 * es, es4 = es3 * es;
+		double[] APC = new double[8];
+		APC[0] = -(es / 2 + 5 * es2 / 24 + 3 * es3 / 32 + 281 * es4 / 5760);
+		APC[1] = 5 * es2 / 48 + 7 * es3 / 80 + 697 * es4 / 11520;
+		APC[2] = -(13 * es3 / 480 + 461 * es4 / 13440);
+		APC[3] = 1237 * es4 / 161280;
+		APC[4] = es / 2 + 5 * es2 / 24 + es3 / 12 + 13 * es4 / 360;
+		APC[5] = 7 * es2 / 48 + 29 * es3 / 240 + 811 * es4 / 11520;
+		APC[6] = 7 * es3 / 120 + 81 * es4 / 1120;
+		APC[7] = 4279 * es4 / 161280;
+		return APC;
+	}
+
+	/**
+	 * Evaluates sum(c[offset+k] * sin(2(k+1)x)), k = 0..3, with Clenshaw
+	 * summation, given sin(2x) and cos(2x).
+	 */
+	private static double sinSeries(double sin2x, double cos2x, double[] c, int offset) {
+		double t = cos2x + cos2x;
+		double b3 = c[offset + 3];
+		double b2 = c[offset + 2] + t * b3;
+		double b1 = c[offset + 1] + t * b2 - b3;
+		return (c[offset] + t * b1 - b2) * sin2x;
+	}
+
+	/**
+	 * Same as tsfn(double, double, double), but computes the conformal
+	 * latitude with a series instead of a power.
+	 * @param APC Coefficients computed by confset.
+	 */
+	public static double tsfn(double phi, double sinphi, double cosphi, double[] APC) {
+		double chi = phi + sinSeries(2 * sinphi * cosphi, (cosphi - sinphi) * (cosphi + sinphi), APC, 0);
+		return Math.tan(.5 * (MapMath.HALFPI - chi));
+	}
+
+	/**
+	 * Same as phi2(double, double), but computes the latitude with a series
+	 * of fixed length instead of an iteration.
+	 * @param APC Coefficients computed by confset.
+	 */
+	public static double phi2(double ts, double[] APC) {
+		// sine and cosine of the conformal latitude chi, where ts = tan(pi/4 - chi/2)
+		double t = 1. / (1. + ts * ts);
+		double sinchi = (1. - ts * ts) * t;
+		double coschi = 2. * ts * t;
+		double chi = MapMath.HALFPI - 2. * Math.atan(ts);
+		return chi + sinSeries(2 * sinchi * coschi, (coschi - sinchi) * (coschi + sinchi), APC, 4);
+	}
+
+	/**
+	 * tsfn with the series of confset if APC is not null, or else with the
+	 * eccentricity e. This is how projections with an optional conformal
+	 * series call tsfn; the series is faster and accurate to about 1e-11 radians.
+	 */
+	public static double tsfn(double phi, double e, double[] APC) {
+		if (APC != null)
+			return tsfn(phi, Math.sin(phi), Math.cos(phi), APC);
+		return tsfn(phi, Math.sin(phi), e);
+	}
+
+	/**
+	 * phi2 with the series of confset if APC is not null, or else by
+	 * iteration with the eccentricity e.
+	 */
+	public static double phi2(double ts, double e, double[] APC) {
+		if (APC != null)
+			return phi2(ts, APC);
+		return phi2(ts, e);
+	}
+
 	private final static double C00 = 1.0;
 	private final static double C02 = .25;
 	private final static double C04 = .046875;
@@ -416,6 +495,37 @@ public class MapMath {
 		return phi;
 	}
 
+	/**
+	 * Coefficients for inv_mlfn(double, double[]): the reciprocal of the
+	 * first coefficient of enfn, followed by the coefficients of the series
+	 * from rectifying latitude to geodetic latitude in terms of
+	 * e1 = (1 - sqrt(1 - es)) / (1 + sqrt(1 - es)).
+	 */
+	public static double[] inv_enfn(double es) {
+		double[] inv_en = new double[5];
+		double r = Math.sqrt(1. - es);
+		double e1 = (1. - r) / (1. + r);
+		double e12 = e1 * e1, e13 = e12 * e1, e14 = e13 * e1;
+		inv_en[0] = 1. / (C00 - es * (C02 + es * (C04 + es * (C06 + es * C08))));
+		inv_en[1] = 3. * e1 / 2. - 27. * e13 / 32.;
+		inv_en[2] = 21. * e12 / 16. - 55. * e14 / 32.;
+		inv_en[3] = 151. * e13 / 96.;
+		inv_en[4] = 1097. * e14 / 512.;
+		return inv_en;
+	}
+
+	/**
+	 * Same as inv_mlfn(double, double, double[]), but computes the latitude
+	 * in one pass from the rectifying latitude instead of iterating.
+	 * @param inv_en Coefficients computed by inv_enfn.
+	 */
+	public static double inv_mlfn(double arg, double[] inv_en) {
+		double mu = arg * inv_en[0];
+		double sin2mu = Math.sin(mu + mu);
+		double cos2mu = Math.cos(mu + mu);
+		return mu + sinSeries(sin2mu, cos2mu, inv_en, 1);
+	}
+
 	private final static double P00 = .33333333333333333333;
 	private final static double P01 = .17222222222222222222;
 	private final static double P02 = .10257936507936507936;
@@ -0,0 +1,380 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+
+/**
+ * Approximates the forward or inverse transform of a projection by
+ * interpolating between exactly transformed nodes, similar to the approximate
+ * transformer of GDAL.
+ *
+ * A scanline is transformed exactly at its ends and middle. If linear
+ * interpolation between the ends is within the maximum error at the middle,
+ * the remaining points are interpolated, otherwise both halves are handled
+ * the same way. A batch of arbitrary points is binned into a grid of cells,
+ * each transformed exactly at its corners, edge midpoints and centre. If bilinear
+ * interpolation between the corners is within the maximum error at the other
+ * five nodes, the points in the cell are interpolated, otherwise the cell is
+ * split in four. Segments and cells with only a few points are transformed
+ * exactly.
+ *
+ * The maximum error is in the units of the result: metres for the forward
+ * transform, degrees for the inverse. Points that cannot be transformed are
+ * set to NaN. Like projections, a transformer is not thread-safe.
+ */
+public class ApproximateTransformer {
+
+    /**
+     * Segments and cells with fewer points are transformed exactly.
+     */
+    private final static int MIN_POINTS = 8;
+    private final static int MAX_DEPTH = 20;
+    /**
+     * The average number of points in the initial cells of a batch.
+     */
+    private final static int GRID_CELL_POINTS = 256;
+    private final static int MAX_GRID_SIZE = 1024;
+    private final Projection projection;
+    private final boolean inverse;
+    private final double maxError;
+    private final Point2D in = new Point2D();
+    private final Point2D out = new Point2D();
+    private int[] indices = new int[0];
+    private int[] sorted = new int[0];
+    private int[] cells = new int[0];
+    private long exactCount = 0;
+    private long interpolatedCount = 0;
+
+    /**
+     * Create an approximate transformer.
+     * @param projection An initialized projection. It is not modified.
+     * @param inverse If true, the inverse transform is approximated.
+     * @param maxError The maximum interpolation error at the check nodes.
+     */
+    public ApproximateTransformer(Projection projection, boolean inverse, double maxError) {
+        if (!(maxError >= 0)) {
+            throw new IllegalArgumentException("Invalid maximum error: " + maxError);
+        }
+        this.projection = projection;
+        this.inverse = inverse;
+        this.maxError = maxError;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    public boolean isInverse() {
+        return inverse;
+    }
+
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Returns the number of exact transforms, including those of check nodes.
+     */
+    public long getExactCount() {
+        return exactCount;
+    }
+
+    /**
+     * Returns the number of interpolated points, i.e. the number of exact
+     * transforms saved.
+     */
+    public long getInterpolatedCount() {
+        return interpolatedCount;
+    }
+
+    public void resetStatistics() {
+        exactCount = 0;
+        interpolatedCount = 0;
+    }
+
+    /**
+     * Transform a point exactly, storing the result in v[k] and v[k + 1].
+     */
+    private void exact(double x, double y, double[] v, int k) {
+        exactCount++;
+        in.x = x;
+        in.y = y;
+        try {
+            if (inverse) {
+                projection.inverseTransform(in, out);
+            } else {
+                projection.transform(in, out);
+            }
+            v[k] = out.x;
+            v[k + 1] = out.y;
+        } catch (ProjectionException e) {
+            v[k] = v[k + 1] = Double.NaN;
+        }
+    }
+
+    /**
+     * Transform the points (x0 + i * dx, y) for i from 0 to numPoints - 1,
+     * e.g. the pixel centres of a raster row, producing interleaved results.
+     */
+    public void transformScanline(double x0, double y, double dx, int numPoints, double[] dstPoints, int dstOffset) {
+        if (numPoints <= 0) {
+            return;
+        }
+        exact(x0, y, dstPoints, dstOffset);
+        if (numPoints > 1) {
+            exact(x0 + (numPoints - 1) * dx, y, dstPoints, dstOffset + 2 * (numPoints - 1));
+            scanline(x0, y, dx, 0, numPoints - 1, dstPoints, dstOffset);
+        }
+    }
+
+    /**
+     * Fill the points between i0 and i1, whose results are already stored.
+     */
+    private void scanline(double x0, double y, double dx, int i0, int i1, double[] dst, int offset) {
+        int n = i1 - i0 - 1;
+        if (n <= 0) {
+            return;
+        }
+        int a = offset + 2 * i0;
+        int b = offset + 2 * i1;
+        if (n < MIN_POINTS || Double.isNaN(dst[a] + dst[a + 1] + dst[b] + dst[b + 1])) {
+            for (int i = i0 + 1; i < i1; i++) {
+                exact(x0 + i * dx, y, dst, offset + 2 * i);
+            }
+            return;
+        }
+        int m = (i0 + i1) >>> 1;
+        int k = offset + 2 * m;
+        exact(x0 + m * dx, y, dst, k);
+        double t = (double) (m - i0) / (i1 - i0);
+        double ex = dst[a] + t * (dst[b] - dst[a]) - dst[k];
+        double ey = dst[a + 1] + t * (dst[b + 1] - dst[a + 1]) - dst[k + 1];
+        if (Math.sqrt(ex * ex + ey * ey) <= maxError) {
+            double sx = (dst[b] - dst[a]) / (i1 - i0);
+            double sy = (dst[b + 1] - dst[a + 1]) / (i1 - i0);
+            for (int i = i0 + 1; i < i1; i++) {
+                if (i != m) {
+                    dst[offset + 2 * i] = dst[a] + (i - i0) * sx;
+                    dst[offset + 2 * i + 1] = dst[a + 1] + (i - i0) * sy;
+                }
+            }
+            interpolatedCount += n - 1;
+        } else {
+            scanline(x0, y, dx, i0, m, dst, offset);
+            scanline(x0, y, dx, m, i1, dst, offset);
+        }
+    }
+
+    /**
+     * Transform a number of interleaved points. srcPoints and dstPoints may
+     * be the same array.
+     */
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        if (indices.length < numPoints) {
+            indices = new int[numPoints];
+        }
+        double x0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE;
+        double y0 = Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        int count = 0;
+        for (int i = 0; i < numPoints; i++) {
+            double x = srcPoints[srcOffset + 2 * i];
+            double y = srcPoints[srcOffset + 2 * i + 1];
+            if (Double.isNaN(x) || Double.isNaN(y) || Double.isInfinite(x) || Double.isInfinite(y)) {
+                exact(x, y, dstPoints, dstOffset + 2 * i);
+            } else {
+                indices[count++] = i;
+                x0 = Math.min(x0, x);
+                x1 = Math.max(x1, x);
+                y0 = Math.min(y0, y);
+                y1 = Math.max(y1, y);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (x1 == x0) {
+            x1 = x0 + 1;
+        }
+        if (y1 == y0) {
+            y1 = y0 + 1;
+        }
+        // bin the points into a grid of initial cells with a counting sort
+        int n = (int) Math.min(MAX_GRID_SIZE, Math.max(1, Math.sqrt((double) count / GRID_CELL_POINTS)));
+        if (sorted.length < numPoints) {
+            sorted = new int[numPoints];
+            cells = new int[numPoints];
+        }
+        int[] start = new int[n * n + 1];
+        double sx = n / (x1 - x0);
+        double sy = n / (y1 - y0);
+        for (int i = 0; i < count; i++) {
+            int k = indices[i];
+            int cx = Math.min(n - 1, (int) ((srcPoints[srcOffset + 2 * k] - x0) * sx));
+            int cy = Math.min(n - 1, (int) ((srcPoints[srcOffset + 2 * k + 1] - y0) * sy));
+            cells[i] = cy * n + cx;
+            start[cells[i] + 1]++;
+        }
+        for (int c = 0; c < n * n; c++) {
+            start[c + 1] += start[c];
+        }
+        int[] next = start.clone();
+        for (int i = 0; i < count; i++) {
+            sorted[next[cells[i]]++] = indices[i];
+        }
+        int[] t = indices;
+        indices = sorted;
+        sorted = t;
+
+        // the grid nodes, transformed exactly where they are needed
+        double[] nodes = new double[2 * (n + 1) * (n + 1)];
+        boolean[] done = new boolean[(n + 1) * (n + 1)];
+        double[] corners = new double[8];
+        double w = (x1 - x0) / n;
+        double h = (y1 - y0) / n;
+        for (int cy = 0; cy < n; cy++) {
+            for (int cx = 0; cx < n; cx++) {
+                int c = cy * n + cx;
+                if (start[c] == start[c + 1]) {
+                    continue;
+                }
+                for (int j = 0; j < 4; j++) {
+                    int nx = cx + (j & 1);
+                    int ny = cy + (j >> 1);
+                    int node = ny * (n + 1) + nx;
+                    if (!done[node]) {
+                        exact(nx == n ? x1 : x0 + nx * w, ny == n ? y1 : y0 + ny * h, nodes, 2 * node);
+                        done[node] = true;
+                    }
+                    corners[2 * j] = nodes[2 * node];
+                    corners[2 * j + 1] = nodes[2 * node + 1];
+                }
+                cell(srcPoints, srcOffset, dstPoints, dstOffset, start[c], start[c + 1],
+                        x0 + cx * w, y0 + cy * h, cx + 1 == n ? x1 : x0 + (cx + 1) * w, cy + 1 == n ? y1 : y0 + (cy + 1) * h,
+                        corners, 0);
+            }
+        }
+    }
+
+    /**
+     * Transform the points with the indices from..to-1 inside a cell whose
+     * corners are already transformed, in the order lower left, lower right,
+     * upper left, upper right.
+     */
+    private void cell(double[] src, int srcOffset, double[] dst, int dstOffset, int from, int to,
+            double x0, double y0, double x1, double y1, double[] corners, int depth) {
+        if (to == from) {
+            return;
+        }
+        if (to - from < MIN_POINTS || depth == MAX_DEPTH) {
+            for (int i = from; i < to; i++) {
+                int k = indices[i];
+                exact(src[srcOffset + 2 * k], src[srcOffset + 2 * k + 1], dst, dstOffset + 2 * k);
+            }
+            return;
+        }
+        double xm = (x0 + x1) * 0.5;
+        double ym = (y0 + y1) * 0.5;
+        // 3 by 3 nodes, row by row from the bottom
+        double[] g = new double[18];
+        System.arraycopy(corners, 0, g, 0, 2);
+        System.arraycopy(corners, 2, g, 4, 2);
+        System.arraycopy(corners, 4, g, 12, 2);
+        System.arraycopy(corners, 6, g, 16, 2);
+        exact(xm, y0, g, 2);
+        exact(x0, ym, g, 6);
+        exact(xm, ym, g, 8);
+        exact(x1, ym, g, 10);
+        exact(xm, y1, g, 14);
+        boolean valid = true;
+        for (int i = 0; i < 18; i++) {
+            if (Double.isNaN(g[i])) {
+                valid = false;
+                break;
+            }
+        }
+        if (valid
+                && midpointError(g, 2, 0, 4) <= maxError
+                && midpointError(g, 6, 0, 12) <= maxError
+                && midpointError(g, 10, 4, 16) <= maxError
+                && midpointError(g, 14, 12, 16) <= maxError
+                && centreError(g) <= maxError) {
+            double rx = 1 / (x1 - x0);
+            double ry = 1 / (y1 - y0);
+            for (int i = from; i < to; i++) {
+                int k = indices[i];
+                double u = (src[srcOffset + 2 * k] - x0) * rx;
+                double v = (src[srcOffset + 2 * k + 1] - y0) * ry;
+                double w00 = (1 - u) * (1 - v);
+                double w10 = u * (1 - v);
+                double w01 = (1 - u) * v;
+                double w11 = u * v;
+                dst[dstOffset + 2 * k] = w00 * g[0] + w10 * g[4] + w01 * g[12] + w11 * g[16];
+                dst[dstOffset + 2 * k + 1] = w00 * g[1] + w10 * g[5] + w01 * g[13] + w11 * g[17];
+            }
+            interpolatedCount += to - from;
+            return;
+        }
+        int midX = partition(src, srcOffset, from, to, 0, xm);
+        int lowY = partition(src, srcOffset, from, midX, 1, ym);
+        int highY = partition(src, srcOffset, midX, to, 1, ym);
+        cell(src, srcOffset, dst, dstOffset, from, lowY, x0, y0, xm, ym,
+                corners(g, 0, 2, 6, 8), depth + 1);
+        cell(src, srcOffset, dst, dstOffset, midX, highY, xm, y0, x1, ym,
+                corners(g, 2, 4, 8, 10), depth + 1);
+        cell(src, srcOffset, dst, dstOffset, lowY, midX, x0, ym, xm, y1,
+                corners(g, 6, 8, 12, 14), depth + 1);
+        cell(src, srcOffset, dst, dstOffset, highY, to, xm, ym, x1, y1,
+                corners(g, 8, 10, 14, 16), depth + 1);
+    }
+
+    private static double[] corners(double[] g, int ll, int lr, int ul, int ur) {
+        return new double[]{g[ll], g[ll + 1], g[lr], g[lr + 1], g[ul], g[ul + 1], g[ur], g[ur + 1]};
+    }
+
+    private static double midpointError(double[] g, int m, int a, int b) {
+        double ex = (g[a] + g[b]) * 0.5 - g[m];
+        double ey = (g[a + 1] + g[b + 1]) * 0.5 - g[m + 1];
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private static double centreError(double[] g) {
+        double ex = (g[0] + g[4] + g[12] + g[16]) * 0.25 - g[8];
+        double ey = (g[1] + g[5] + g[13] + g[17]) * 0.25 - g[9];
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * Reorder the indices from..to-1 so that the points with a coordinate
+     * below the split value come first, and return the index of the first
+     * point at or above it.
+     */
+    private int partition(double[] src, int srcOffset, int from, int to, int axis, double split) {
+        int i = from;
+        int j = to - 1;
+        while (i <= j) {
+            if (src[srcOffset + 2 * indices[i] + axis] < split) {
+                i++;
+            } else {
+                int t = indices[i];
+                indices[i] = indices[j];
+                indices[j] = t;
+                j--;
+            }
+        }
+        return i;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+import com.jhlabs.map.*;
+
+/**
+ * Approximates another projection with piecewise two-dimensional Chebyshev
+ * polynomials inside a lon/lat window. The window is split into tiles, and
+ * each tile is fitted and then checked against the exact projection on a
+ * dense grid. Tiles exceeding the tolerance are split again; tiles that
+ * cannot be fitted at the maximum depth use the exact projection. The inverse
+ * is fitted the same way over the bounding box of the projected window.
+ *
+ * Points outside the window are projected with the exact projection, so this
+ * can replace the approximated projection anywhere. The maximum errors found
+ * on the check grids are available from getMaxError and getMaxInverseError.
+ */
+public class ChebyshevProjection extends Projection {
+
+    /**
+     * The degree of the polynomials in each direction.
+     */
+    private final static int DEGREE = 5;
+    private final static int NODES = DEGREE + 1;
+    /**
+     * The number of check grid intervals in each direction of a tile.
+     */
+    private final static int CHECK_INTERVALS = 16;
+    private final static int MAX_DEPTH = 8;
+    private final Projection projection;
+    private final double tolerance;
+    private final double minLam, maxLam, minPhi, maxPhi;
+    private final Tile forwardTile, inverseTile;
+    private double maxError = 0, maxInverseError = 0;
+
+    /**
+     * A rectangle of the domain with its polynomial coefficients, or with
+     * four children, or with neither if the exact projection is used.
+     */
+    private static class Tile {
+
+        final double x0, x1, y0, y1;
+        double[] cx, cy;
+        Tile[] children;
+
+        Tile(double x0, double x1, double y0, double y1) {
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        boolean contains(double x, double y) {
+            return x >= x0 && x <= x1 && y >= y0 && y <= y1;
+        }
+
+        /**
+         * Returns the leaf tile containing the point, which must be inside this tile.
+         */
+        Tile find(double x, double y) {
+            Tile t = this;
+            while (t.children != null) {
+                int i = x < (t.x0 + t.x1) * 0.5 ? 0 : 1;
+                if (y >= (t.y0 + t.y1) * 0.5) {
+                    i += 2;
+                }
+                t = t.children[i];
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Approximate a projection inside a lon/lat window.
+     * @param projection An initialized projection. It is not modified.
+     * @param minLon The western longitude of the window in degrees.
+     * @param minLat The southern latitude of the window in degrees.
+     * @param maxLon The eastern longitude of the window in degrees.
+     * @param maxLat The northern latitude of the window in degrees.
+     * @param tolerance The maximum error in projected units, usually metres.
+     * The error of the inverse is the distance on the ground from the exact
+     * inverse, on a sphere with the equator radius, in the same units.
+     */
+    public ChebyshevProjection(Projection projection, double minLon, double minLat,
+            double maxLon, double maxLat, double tolerance) {
+        if (!(minLon < maxLon && minLat < maxLat && tolerance > 0)) {
+            throw new IllegalArgumentException("Invalid window or tolerance");
+        }
+        this.projection = projection;
+        this.tolerance = tolerance;
+        setEllipsoid(projection.getEllipsoid());
+        setDatum(projection.getDatum());
+        minLatitude = projection.minLatitude;
+        maxLatitude = projection.maxLatitude;
+        minLongitude = projection.minLongitude;
+        maxLongitude = projection.maxLongitude;
+        projectionLatitude = projection.projectionLatitude;
+        projectionLongitude = projection.projectionLongitude;
+        scaleFactor = projection.scaleFactor;
+        falseEasting = projection.falseEasting;
+        falseNorthing = projection.falseNorthing;
+        trueScaleLatitude = projection.trueScaleLatitude;
+        fromMetres = projection.fromMetres;
+        name = projection.name;
+        initialize();
+        totalScale = projection.totalScale;
+        totalFalseEasting = projection.totalFalseEasting;
+        totalFalseNorthing = projection.totalFalseNorthing;
+
+        minLam = minLon * DTR - projectionLongitude;
+        maxLam = maxLon * DTR - projectionLongitude;
+        if (minLam < -Math.PI || maxLam > Math.PI) {
+            throw new IllegalArgumentException("Window must be within 180 degrees of the central meridian");
+        }
+        minPhi = minLat * DTR;
+        maxPhi = maxLat * DTR;
+
+        forwardTile = new Tile(minLam, maxLam, minPhi, maxPhi);
+        fit(forwardTile, false, 0);
+        if (projection.hasInverse()) {
+            inverseTile = projectedBounds();
+            if (inverseTile != null) {
+                fit(inverseTile, true, 0);
+            }
+        } else {
+            inverseTile = null;
+        }
+    }
+
+    /**
+     * Returns the approximated projection.
+     */
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Returns the tolerance in projected units.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Returns the largest forward error found on the check grids, in projected units.
+     */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Returns the largest inverse error found on the check grids, in projected
+     * units on a sphere with the equator radius.
+     */
+    public double getMaxInverseError() {
+        return maxInverseError;
+    }
+
+    /**
+     * Returns the bounding box of the projected window, or null if part of
+     * the window cannot be projected.
+     */
+    private Tile projectedBounds() {
+        final int n = 64;
+        double x0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE;
+        double y0 = Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        Point2D p = new Point2D();
+        try {
+            for (int i = 0; i <= n; i++) {
+                double lam = minLam + (maxLam - minLam) * i / n;
+                for (int j = 0; j <= n; j++) {
+                    projection.project(lam, minPhi + (maxPhi - minPhi) * j / n, p);
+                    x0 = Math.min(x0, p.x);
+                    x1 = Math.max(x1, p.x);
+                    y0 = Math.min(y0, p.y);
+                    y1 = Math.max(y1, p.y);
+                }
+            }
+        } catch (ProjectionException e) {
+            return null;
+        }
+        if (!(x0 < x1 && y0 < y1)) {
+            return null;
+        }
+        return new Tile(x0, x1, y0, y1);
+    }
+
+    /**
+     * Evaluate the exact projection or inverse projection.
+     */
+    private void exact(double x, double y, boolean inverse, Point2D out) {
+        if (inverse) {
+            projection.projectInverse(x, y, out);
+        } else {
+            projection.project(x, y, out);
+        }
+        if (Double.isNaN(out.x) || Double.isNaN(out.y) || Double.isInfinite(out.x) || Double.isInfinite(out.y)) {
+            throw new ProjectionException("Cannot approximate");
+        }
+    }
+
+    /**
+     * Fit a tile, check it and split it if the error is too large.
+     */
+    private void fit(Tile tile, boolean inverse, int depth) {
+        double error;
+        try {
+            fitCoefficients(tile, inverse);
+            error = checkError(tile, inverse);
+        } catch (ProjectionException e) {
+            tile.cx = tile.cy = null;
+            error = Double.POSITIVE_INFINITY;
+        }
+        if (error <= tolerance) {
+            if (inverse) {
+                maxInverseError = Math.max(maxInverseError, error);
+            } else {
+                maxError = Math.max(maxError, error);
+            }
+            return;
+        }
+        tile.cx = tile.cy = null;
+        if (depth == MAX_DEPTH) {
+            // the exact projection is used for this tile
+            return;
+        }
+        double xm = (tile.x0 + tile.x1) * 0.5;
+        double ym = (tile.y0 + tile.y1) * 0.5;
+        tile.children = new Tile[]{
+            new Tile(tile.x0, xm, tile.y0, ym),
+            new Tile(xm, tile.x1, tile.y0, ym),
+            new Tile(tile.x0, xm, ym, tile.y1),
+            new Tile(xm, tile.x1, ym, tile.y1)
+        };
+        for (int i = 0; i < 4; i++) {
+            fit(tile.children[i], inverse, depth + 1);
+        }
+    }
+
+    /**
+     * Compute the Chebyshev coefficients of a tile from the values at the
+     * Chebyshev nodes.
+     */
+    private void fitCoefficients(Tile tile, boolean inverse) {
+        double[] nodes = new double[NODES];
+        double[][] T = new double[NODES][NODES];
+        for (int k = 0; k < NODES; k++) {
+            double theta = Math.PI * (k + 0.5) / NODES;
+            nodes[k] = Math.cos(theta);
+            for (int i = 0; i < NODES; i++) {
+                T[i][k] = Math.cos(i * theta);
+            }
+        }
+        double[] fx = new double[NODES * NODES];
+        double[] fy = new double[NODES * NODES];
+        Point2D p = new Point2D();
+        double hx = (tile.x1 - tile.x0) * 0.5, mx = (tile.x1 + tile.x0) * 0.5;
+        double hy = (tile.y1 - tile.y0) * 0.5, my = (tile.y1 + tile.y0) * 0.5;
+        for (int k = 0; k < NODES; k++) {
+            for (int l = 0; l < NODES; l++) {
+                exact(mx + hx * nodes[k], my + hy * nodes[l], inverse, p);
+                fx[k * NODES + l] = p.x;
+                fy[k * NODES + l] = p.y;
+            }
+        }
+        // separable transform, first along y then along x
+        double[] gx = new double[NODES * NODES];
+        double[] gy = new double[NODES * NODES];
+        for (int k = 0; k < NODES; k++) {
+            for (int j = 0; j < NODES; j++) {
+                double sx = 0, sy = 0;
+                for (int l = 0; l < NODES; l++) {
+                    sx += fx[k * NODES + l] * T[j][l];
+                    sy += fy[k * NODES + l] * T[j][l];
+                }
+                gx[k * NODES + j] = sx;
+                gy[k * NODES + j] = sy;
+            }
+        }
+        double[] cx = new double[NODES * NODES];
+        double[] cy = new double[NODES * NODES];
+        for (int i = 0; i < NODES; i++) {
+            for (int j = 0; j < NODES; j++) {
+                double sx = 0, sy = 0;
+                for (int k = 0; k < NODES; k++) {
+                    sx += gx[k * NODES + j] * T[i][k];
+                    sy += gy[k * NODES + j] * T[i][k];
+                }
+                double w = 4.0 / (NODES * NODES);
+                if (i == 0) {
+                    w *= 0.5;
+                }
+                if (j == 0) {
+                    w *= 0.5;
+                }
+                cx[i * NODES + j] = sx * w;
+                cy[i * NODES + j] = sy * w;
+            }
+        }
+        tile.cx = cx;
+        tile.cy = cy;
+    }
+
+    /**
+     * Returns the largest difference between the polynomials and the exact
+     * projection on a regular grid over the tile, in projected units. The
+     * inverse error is converted from radians on a sphere with the equator
+     * radius.
+     */
+    private double checkError(Tile tile, boolean inverse) {
+        double max = 0;
+        Point2D p = new Point2D();
+        Point2D q = new Point2D();
+        for (int i = 0; i <= CHECK_INTERVALS; i++) {
+            double x = tile.x0 + (tile.x1 - tile.x0) * i / CHECK_INTERVALS;
+            for (int j = 0; j <= CHECK_INTERVALS; j++) {
+                double y = tile.y0 + (tile.y1 - tile.y0) * j / CHECK_INTERVALS;
+                exact(x, y, inverse, p);
+                evaluate(tile, x, y, q);
+                double error;
+                if (inverse) {
+                    error = a * fromMetres * MapMath.distance((q.x - p.x) * Math.cos(p.y), q.y - p.y);
+                } else {
+                    error = totalScale * MapMath.distance(q.x - p.x, q.y - p.y);
+                }
+                if (Double.isNaN(error)) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                max = Math.max(max, error);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Evaluate the polynomials of a leaf tile with the Clenshaw recurrence.
+     */
+    private static void evaluate(Tile tile, double x, double y, Point2D out) {
+        double u = (2 * x - tile.x0 - tile.x1) / (tile.x1 - tile.x0);
+        double v = (2 * y - tile.y0 - tile.y1) / (tile.y1 - tile.y0);
+        double u2 = 2 * u, v2 = 2 * v;
+        double[] cx = tile.cx, cy = tile.cy;
+        double bx1 = 0, bx2 = 0, by1 = 0, by2 = 0;
+        for (int i = DEGREE; i >= 0; i--) {
+            // inner sums along v
+            int row = i * NODES;
+            double dx1 = 0, dx2 = 0, dy1 = 0, dy2 = 0;
+            for (int j = DEGREE; j >= 1; j--) {
+                double dx = v2 * dx1 - dx2 + cx[row + j];
+                double dy = v2 * dy1 - dy2 + cy[row + j];
+                dx2 = dx1;
+                dx1 = dx;
+                dy2 = dy1;
+                dy1 = dy;
+            }
+            double sx = v * dx1 - dx2 + cx[row];
+            double sy = v * dy1 - dy2 + cy[row];
+            if (i > 0) {
+                double bx = u2 * bx1 - bx2 + sx;
+                double by = u2 * by1 - by2 + sy;
+                bx2 = bx1;
+                bx1 = bx;
+                by2 = by1;
+                by1 = by;
+            } else {
+                out.x = u * bx1 - bx2 + sx;
+                out.y = u * by1 - by2 + sy;
+            }
+        }
+    }
+
+    public Point2D project(double lam, double phi, Point2D xy) {
+        if (forwardTile.contains(lam, phi)) {
+            Tile t = forwardTile.find(lam, phi);
+            if (t.cx != null) {
+                evaluate(t, lam, phi, xy);
+                return xy;
+            }
+        }
+        return projection.project(lam, phi, xy);
+    }
+
+    public Point2D projectInverse(double x, double y, Point2D lp) {
+        if (inverseTile != null && inverseTile.contains(x, y)) {
+            Tile t = inverseTile.find(x, y);
+            if (t.cx != null) {
+                evaluate(t, x, y, lp);
+                return lp;
+            }
+        }
+        return projection.projectInverse(x, y, lp);
+    }
+
+    public boolean hasInverse() {
+        return projection.hasInverse();
+    }
+
+    public boolean isConformal() {
+        return projection.isConformal();
+    }
+
+    public boolean isEqualArea() {
+        return projection.isEqualArea();
+    }
+
+    public boolean isRectilinear() {
+        return projection.isRectilinear();
+    }
+
+    public boolean parallelsAreParallel() {
+        return projection.parallelsAreParallel();
+    }
+
+    public String getPROJ4Description() {
+        return projection.getPROJ4Description();
+    }
+
+    public String toString() {
+        return "Chebyshev approximation of " + projection;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A compiled catalogue of coordinate system files, read through a memory
+ * mapped buffer. Only the file names are decoded when the catalogue is
+ * opened; a definition is decoded when it is looked up, through a hash
+ * table in the file.
+ *
+ * The catalogue is compiled from coordsys files with the main method:
+ * <pre>
+ * java com.jhlabs.map.proj.CoordinateSystemCatalogue src/coordsys/catalogue.bin src/coordsys/world ...
+ * </pre>
+ * ProjectionFactory uses /coordsys/catalogue.bin on the class path, if
+ * present, for the files it contains, so it must be compiled again when
+ * they change.
+ *
+ * The format is big-endian:
+ * <pre>
+ * int magic, int version
+ * int string count, int offset of each string, int offset of the file table,
+ *     strings as short length and UTF-8 bytes
+ * int file count, int string index of each file name
+ * int slot count, slots of int hash and int record offset (0 for empty)
+ * records of unsigned byte file index, int string index of the name, byte parameter count,
+ *     and for each parameter int string index of the key, byte type and the value
+ * </pre>
+ * Values are nothing for flags, an int, a double, or the string index of
+ * the text. Keys, names and texts are interned in the string table.
+ */
+public class CoordinateSystemCatalogue {
+
+    public final static String RESOURCE = "/coordsys/catalogue.bin";
+    private final static int MAGIC = 0x43525343; // "CRSC"
+    private final static int VERSION = 1;
+    private final static int FLAG = 0;
+    private final static int INT = 1;
+    private final static int DOUBLE = 2;
+    private final static int TEXT = 3;
+    private static volatile CoordinateSystemCatalogue defaultCatalogue;
+    private static volatile boolean defaultLoaded = false;
+    private final ByteBuffer buffer;
+    /**
+     * Strings decoded so far. Strings are immutable, so racing decodes are harmless.
+     */
+    private final String[] strings;
+    private final String[] files;
+    private final int slotsOffset;
+    private final int slotMask;
+
+    /**
+     * The strings of a catalogue being compiled, in order of their index.
+     */
+    private static class StringPool {
+
+        final List<String> strings = new ArrayList<String>();
+        final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        int intern(String s) {
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = Integer.valueOf(strings.size());
+                strings.add(s);
+                indexes.put(s, index);
+            }
+            return index.intValue();
+        }
+    }
+
+    /**
+     * Open a compiled catalogue in a buffer.
+     */
+    public CoordinateSystemCatalogue(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a coordinate system catalogue");
+        }
+        int count = buffer.getInt(8);
+        strings = new String[count];
+        int offset = buffer.getInt(12 + 4 * count);
+        files = new String[buffer.getInt(offset)];
+        offset += 4;
+        for (int i = 0; i < files.length; i++, offset += 4) {
+            files[i] = getString(buffer.getInt(offset));
+        }
+        int slots = buffer.getInt(offset);
+        slotsOffset = offset + 4;
+        slotMask = slots - 1;
+    }
+
+    /**
+     * Returns the catalogue compiled into the class path resource, or null if
+     * there is none. A resource which cannot be read is an error, and is
+     * tried again on the next call. Only the first call takes a lock.
+     */
+    public static CoordinateSystemCatalogue getDefault() throws IOException {
+        if (!defaultLoaded) {
+            synchronized (CoordinateSystemCatalogue.class) {
+                if (!defaultLoaded) {
+                    URL url = CoordinateSystemCatalogue.class.getResource(RESOURCE);
+                    if (url != null) {
+                        defaultCatalogue = new CoordinateSystemCatalogue(load(url));
+                    }
+                    defaultLoaded = true;
+                }
+            }
+        }
+        return defaultCatalogue;
+    }
+
+    /**
+     * Map a file resource, or read any other resource into memory.
+     */
+    private static ByteBuffer load(URL url) throws IOException {
+        if (url.getProtocol().equals("file")) {
+            File file;
+            try {
+                file = new File(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException("Bad catalogue location: " + url);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        }
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                out.write(b, 0, n);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns true if the catalogue was compiled from a coordsys file of this name.
+     */
+    public boolean hasFile(String file) {
+        return fileIndex(file) != -1;
+    }
+
+    private int fileIndex(String file) {
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].equals(file)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(int file, String name) {
+        int h = name.hashCode() * 31 + file;
+        return h ^ (h >>> 16);
+    }
+
+    private String getString(int index) {
+        String s = strings[index];
+        if (s == null) {
+            int offset = buffer.getInt(12 + 4 * index);
+            byte[] b = new byte[buffer.getShort(offset) & 0xffff];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = buffer.get(offset + 2 + i);
+            }
+            try {
+                s = new String(b, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new InternalError();
+            }
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the PROJ.4 argument list of a coordinate system in one of the
+     * compiled files, or null if it is not there.
+     */
+    public String[] getArguments(String file, String name) {
+        int record = find(file, name);
+        if (record == -1) {
+            return null;
+        }
+        int offset = record + 5;
+        String[] args = new String[buffer.get(offset++) & 0xff];
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < args.length; i++) {
+            sb.setLength(0);
+            sb.append('+').append(getString(buffer.getInt(offset)));
+            Object value = getValue(offset);
+            offset += parameterLength(offset);
+            if (value != null) {
+                sb.append('=').append(value);
+            }
+            args[i] = sb.toString();
+        }
+        return args;
+    }
+
+    /**
+     * Returns the parameters of a coordinate system in one of the compiled
+     * files by name, or null if it is not there. Numbers are returned as
+     * Integers and Doubles, so that they need not be formatted and parsed
+     * again, and other values as Strings. Flags are left out, as
+     * ProjectionFactory ignores them.
+     */
+    public Map<String, Object> getParameters(String file, String name) {
+        int record = find(file, name);
+        if (record == -1) {
+            return null;
+        }
+        int offset = record + 5;
+        int count = buffer.get(offset++) & 0xff;
+        Map<String, Object> params = new HashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            Object value = getValue(offset);
+            if (value != null) {
+                params.put(getString(buffer.getInt(offset)), value);
+            }
+            offset += parameterLength(offset);
+        }
+        return params;
+    }
+
+    /**
+     * Returns the offset of the record of a coordinate system, or -1.
+     */
+    private int find(String file, String name) {
+        int f = fileIndex(file);
+        if (f == -1) {
+            return -1;
+        }
+        int h = hash(f, name);
+        for (int slot = h & slotMask;; slot = (slot + 1) & slotMask) {
+            int record = buffer.getInt(slotsOffset + slot * 8 + 4);
+            if (record == 0) {
+                return -1;
+            }
+            if (buffer.getInt(slotsOffset + slot * 8) == h
+                    && (buffer.get(record) & 0xff) == f
+                    && getString(buffer.getInt(record + 1)).equals(name)) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the parameter at the offset, or null for a flag.
+     */
+    private Object getValue(int offset) {
+        switch (buffer.get(offset + 4)) {
+            case INT:
+                return Integer.valueOf(buffer.getInt(offset + 5));
+            case DOUBLE:
+                return Double.valueOf(buffer.getDouble(offset + 5));
+            case TEXT:
+                return getString(buffer.getInt(offset + 5));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the length in bytes of the parameter at the offset.
+     */
+    private int parameterLength(int offset) {
+        switch (buffer.get(offset + 4)) {
+            case DOUBLE:
+                return 13;
+            case INT:
+            case TEXT:
+                return 9;
+        }
+        return 5;
+    }
+
+    /**
+     * Compile coordsys files into a catalogue.
+     * @param files The names of the coordsys files, as used by ProjectionFactory.
+     * @param catalogues The contents of the files, as read by ProjectionFactory.
+     */
+    public static void write(String[] files, List<Map<String, String[]>> catalogues, OutputStream out) throws IOException {
+        if (files.length > 255) {
+            throw new IOException("Too many files: " + files.length);
+        }
+        StringPool pool = new StringPool();
+        List<String> strings = pool.strings;
+        for (int i = 0; i < files.length; i++) {
+            pool.intern(files[i]);
+        }
+
+        // records, at offsets relative to the start of the records
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int count = 0;
+        for (int f = 0; f < files.length; f++) {
+            count += catalogues.get(f).size();
+        }
+        int[] hashes = new int[count];
+        int[] offsets = new int[count];
+        count = 0;
+        for (int f = 0; f < files.length; f++) {
+            Map<String, String[]> catalogue = catalogues.get(f);
+            String[] names = catalogue.keySet().toArray(new String[catalogue.size()]);
+            Arrays.sort(names);
+            for (int n = 0; n < names.length; n++) {
+                String name = names[n];
+                String[] args = catalogue.get(name);
+                if (args.length > 255) {
+                    throw new IOException("Too many parameters: " + name);
+                }
+                hashes[count] = hash(f, name);
+                offsets[count] = records.size();
+                count++;
+                records.writeByte(f);
+                records.writeInt(pool.intern(name));
+                records.writeByte(args.length);
+                for (int i = 0; i < args.length; i++) {
+                    String arg = args[i].startsWith("+") ? args[i].substring(1) : args[i];
+                    int index = arg.indexOf('=');
+                    if (index == -1) {
+                        records.writeInt(pool.intern(arg));
+                        records.writeByte(FLAG);
+                        continue;
+                    }
+                    records.writeInt(pool.intern(arg.substring(0, index)));
+                    writeValue(arg.substring(index + 1), records, pool);
+                }
+            }
+        }
+
+        // the header up to the slots
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(strings.size());
+        int offset = 12 + 4 * strings.size() + 4;
+        byte[][] encoded = new byte[strings.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = strings.get(i).getBytes("UTF-8");
+            if (encoded[i].length > 0xffff) {
+                throw new IOException("String too long");
+            }
+            header.writeInt(offset);
+            offset += 2 + encoded[i].length;
+        }
+        header.writeInt(offset);
+        for (int i = 0; i < encoded.length; i++) {
+            header.writeShort(encoded[i].length);
+            header.write(encoded[i]);
+        }
+        header.writeInt(files.length);
+        for (int i = 0; i < files.length; i++) {
+            header.writeInt(pool.intern(files[i]));
+        }
+
+        // a hash table at most half full
+        int slots = 2;
+        while (slots < 2 * hashes.length) {
+            slots *= 2;
+        }
+        header.writeInt(slots);
+        int recordsOffset = header.size() + 8 * slots;
+        int[] table = new int[2 * slots];
+        for (int i = 0; i < hashes.length; i++) {
+            int h = hashes[i];
+            int slot = h & (slots - 1);
+            while (table[2 * slot + 1] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            table[2 * slot] = h;
+            table[2 * slot + 1] = recordsOffset + offsets[i];
+        }
+        for (int i = 0; i < table.length; i++) {
+            header.writeInt(table[i]);
+        }
+        header.flush();
+        records.flush();
+        headerBytes.writeTo(out);
+        recordBytes.writeTo(out);
+    }
+
+    /**
+     * Write a value as an int or a finite double if it reads back as the
+     * same text, so that it means the same to ProjectionFactory, or else as
+     * text.
+     */
+    private static void writeValue(String value, DataOutputStream out, StringPool pool) throws IOException {
+        try {
+            int i = Integer.parseInt(value);
+            if (Integer.toString(i).equals(value)) {
+                out.writeByte(INT);
+                out.writeInt(i);
+                return;
+            }
+        } catch (NumberFormatException e) {
+        }
+        try {
+            double d = Double.parseDouble(value);
+            if (!Double.isNaN(d) && !Double.isInfinite(d) && Double.toString(d).equals(value)) {
+                out.writeByte(DOUBLE);
+                out.writeDouble(d);
+                return;
+            }
+        } catch (NumberFormatException e) {
+        }
+        out.writeByte(TEXT);
+        out.writeInt(pool.intern(value));
+    }
+
+    /**
+     * Compile coordsys files into a catalogue. The arguments are the output
+     * file followed by the coordsys files.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CoordinateSystemCatalogue output coordsys-file...");
+            System.exit(1);
+        }
+        String[] files = new String[args.length - 1];
+        List<Map<String, String[]>> catalogues = new ArrayList<Map<String, String[]>>();
+        for (int i = 0; i < files.length; i++) {
+            File file = new File(args[i + 1]);
+            files[i] = file.getName();
+            Reader reader = new BufferedReader(new FileReader(file));
+            try {
+                catalogues.add(ProjectionFactory.readCatalogue(reader));
+            } finally {
+                reader.close();
+            }
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]));
+        try {
+            write(files, catalogues, out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+import com.jhlabs.map.*;
+
+/**
+ * Transforms points from one projection to another in one pass, instead of
+ * inverse projecting into an array of degrees and projecting that. The
+ * points stay in radians between the two projections and the two longitude
+ * normalizations are folded into one. A NullProjection (latlong) at either
+ * end means lon/lat in degrees.
+ *
+ * If both projections have datums that are not equivalent, the points are
+ * shifted from one datum to the other in between, at height zero. The
+ * shift uses the ellipsoids of the projections, which may differ from the
+ * ellipsoids of their datums, as with +datum=NAD27 +ellps=GRS80.
+ * Otherwise, if the two projections only differ in their false origin and
+ * units, the transform is affine and the projections are not called at
+ * all; isAffine and isIdentity tell when this is the case.
+ *
+ * The projections must be initialized and are not copied, so they must not
+ * be changed while the transform is in use.
+ */
+public class CoordinateTransform {
+
+    private final static double DTR = Math.PI / 180.0;
+    private final static double RTD = 180.0 / Math.PI;
+    /**
+     * The number of points shifted between datums at once.
+     */
+    private final static int CHUNK_SIZE = 256;
+    private final Projection source, target;
+    private final boolean sourceGeographic, targetGeographic;
+    /**
+     * The datums to shift between, or null if no shift is needed.
+     */
+    private final Datum sourceDatum, targetDatum;
+    private final boolean affine, identity;
+    /**
+     * The affine transform, target = scale * source + offset.
+     */
+    private double scale = 1, offsetX = 0, offsetY = 0;
+
+    /**
+     * Create a transform between two projections, shifting between their datums.
+     */
+    public CoordinateTransform(Projection source, Projection target) {
+        this(source, target, true);
+    }
+
+    /**
+     * Create a transform between two projections.
+     * @param datumShift If false, the datums of the projections are ignored.
+     */
+    public CoordinateTransform(Projection source, Projection target, boolean datumShift) {
+        this.source = source;
+        this.target = target;
+        sourceGeographic = source instanceof NullProjection;
+        targetGeographic = target instanceof NullProjection;
+        Datum s = source.getDatum();
+        Datum t = target.getDatum();
+        if (datumShift && s != null && t != null) {
+            // the coordinates are on the ellipsoids of the projections
+            s = s.withEllipsoid(source.getEllipsoid());
+            t = t.withEllipsoid(target.getEllipsoid());
+        }
+        if (datumShift && s != null && t != null && !s.isEquivalent(t)) {
+            sourceDatum = s;
+            targetDatum = t;
+        } else {
+            sourceDatum = targetDatum = null;
+        }
+        affine = sourceDatum == null && findAffine();
+        identity = affine && scale == 1 && offsetX == 0 && offsetY == 0;
+    }
+
+    public Projection getSource() {
+        return source;
+    }
+
+    public Projection getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns true if the transform is a scale and an offset.
+     */
+    public boolean isAffine() {
+        return affine;
+    }
+
+    /**
+     * Returns true if the transform leaves points unchanged.
+     */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    /**
+     * Returns true if the projections are the same apart from their false
+     * origin and units, and sets the affine transform between them. The
+     * projections must be of the same class with the same parameters, and
+     * must give the same results on a few points.
+     */
+    private boolean findAffine() {
+        if (sourceGeographic || targetGeographic) {
+            return sourceGeographic && targetGeographic;
+        }
+        if (source.getClass() != target.getClass()
+                || source.projectionLongitude != target.projectionLongitude
+                || source.projectionLatitude != target.projectionLatitude
+                || source.trueScaleLatitude != target.trueScaleLatitude
+                || source.scaleFactor != target.scaleFactor
+                || source.a != target.a
+                || source.es != target.es) {
+            return false;
+        }
+        Point2D p = new Point2D();
+        Point2D q = new Point2D();
+        try {
+            for (double lam = -0.4; lam <= 0.4; lam += 0.2) {
+                for (double phi = -1.0; phi <= 1.0; phi += 0.5) {
+                    source.project(lam, phi, p);
+                    target.project(lam, phi, q);
+                    if (Double.doubleToLongBits(p.x) != Double.doubleToLongBits(q.x)
+                            || Double.doubleToLongBits(p.y) != Double.doubleToLongBits(q.y)) {
+                        return false;
+                    }
+                }
+            }
+        } catch (ProjectionException e) {
+            return false;
+        }
+        scale = target.totalScale / source.totalScale;
+        offsetX = target.totalFalseEasting - scale * source.totalFalseEasting;
+        offsetY = target.totalFalseNorthing - scale * source.totalFalseNorthing;
+        return true;
+    }
+
+    /**
+     * Transform a number of interleaved x/y points from the source to the
+     * target projection. The source and destination arrays may be the same.
+     */
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        if (identity) {
+            if (srcPoints != dstPoints || srcOffset != dstOffset) {
+                System.arraycopy(srcPoints, srcOffset, dstPoints, dstOffset, 2 * numPoints);
+            }
+        } else if (affine) {
+            final double scale = this.scale;
+            final double x0 = offsetX;
+            final double y0 = offsetY;
+            for (int i = 0; i < numPoints; i++) {
+                dstPoints[dstOffset++] = scale * srcPoints[srcOffset++] + x0;
+                dstPoints[dstOffset++] = scale * srcPoints[srcOffset++] + y0;
+            }
+        } else if (sourceDatum != null) {
+            transformWithDatum(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+        } else {
+            transformDirect(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+        }
+    }
+
+    private void transformDirect(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        final double sourceScale = source.totalScale;
+        final double sourceX0 = source.totalFalseEasting;
+        final double sourceY0 = source.totalFalseNorthing;
+        final double targetScale = target.totalScale;
+        final double targetX0 = target.totalFalseEasting;
+        final double targetY0 = target.totalFalseNorthing;
+        final double dlon = (sourceGeographic ? 0 : source.projectionLongitude)
+                - (targetGeographic ? 0 : target.projectionLongitude);
+        Point2D p = new Point2D();
+        for (int i = 0; i < numPoints; i++) {
+            double lam, phi;
+            if (sourceGeographic) {
+                lam = srcPoints[srcOffset++] * DTR;
+                phi = srcPoints[srcOffset++] * DTR;
+            } else {
+                double x = (srcPoints[srcOffset++] - sourceX0) / sourceScale;
+                double y = (srcPoints[srcOffset++] - sourceY0) / sourceScale;
+                source.projectInverse(x, y, p);
+                lam = p.x;
+                phi = p.y;
+                if (lam < -Math.PI) {
+                    lam = -Math.PI;
+                } else if (lam > Math.PI) {
+                    lam = Math.PI;
+                }
+            }
+            if (dlon != 0) {
+                lam = MapMath.normalizeLongitude(lam + dlon);
+            }
+            if (targetGeographic) {
+                dstPoints[dstOffset++] = lam * RTD;
+                dstPoints[dstOffset++] = phi * RTD;
+            } else {
+                target.project(lam, phi, p);
+                dstPoints[dstOffset++] = targetScale * p.x + targetX0;
+                dstPoints[dstOffset++] = targetScale * p.y + targetY0;
+            }
+        }
+    }
+
+    /**
+     * Transform in chunks: inverse project a chunk into lon/lat/height
+     * triples in degrees, shift them between the datums and project them.
+     * Points the datum shift cannot handle are set to NaN.
+     */
+    private void transformWithDatum(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        final double sourceScale = source.totalScale;
+        final double sourceX0 = source.totalFalseEasting;
+        final double sourceY0 = source.totalFalseNorthing;
+        final double sourceLon0 = sourceGeographic ? 0 : source.projectionLongitude;
+        final double targetScale = target.totalScale;
+        final double targetX0 = target.totalFalseEasting;
+        final double targetY0 = target.totalFalseNorthing;
+        final double targetLon0 = targetGeographic ? 0 : target.projectionLongitude;
+        double[] buffer = new double[3 * Math.min(numPoints, CHUNK_SIZE)];
+        Point2D p = new Point2D();
+        for (int start = 0; start < numPoints; start += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, numPoints - start);
+            for (int i = 0, j = 0; i < n; i++) {
+                if (sourceGeographic) {
+                    buffer[j++] = srcPoints[srcOffset++];
+                    buffer[j++] = srcPoints[srcOffset++];
+                } else {
+                    double x = (srcPoints[srcOffset++] - sourceX0) / sourceScale;
+                    double y = (srcPoints[srcOffset++] - sourceY0) / sourceScale;
+                    source.projectInverse(x, y, p);
+                    double lam = p.x;
+                    if (lam < -Math.PI) {
+                        lam = -Math.PI;
+                    } else if (lam > Math.PI) {
+                        lam = Math.PI;
+                    }
+                    if (sourceLon0 != 0) {
+                        lam = MapMath.normalizeLongitude(lam + sourceLon0);
+                    }
+                    buffer[j++] = lam * RTD;
+                    buffer[j++] = p.y * RTD;
+                }
+                buffer[j++] = 0;
+            }
+            sourceDatum.transform(targetDatum, buffer, 0, buffer, 0, n);
+            for (int i = 0, j = 0; i < n; i++, j += 3) {
+                double lam = buffer[j] * DTR;
+                double phi = buffer[j + 1] * DTR;
+                if (Double.isNaN(lam) || Double.isNaN(phi)) {
+                    dstPoints[dstOffset++] = Double.NaN;
+                    dstPoints[dstOffset++] = Double.NaN;
+                } else if (targetGeographic) {
+                    dstPoints[dstOffset++] = buffer[j];
+                    dstPoints[dstOffset++] = buffer[j + 1];
+                } else {
+                    if (targetLon0 != 0) {
+                        lam = MapMath.normalizeLongitude(lam - targetLon0);
+                    }
+                    target.project(lam, phi, p);
+                    dstPoints[dstOffset++] = targetScale * p.x + targetX0;
+                    dstPoints[dstOffset++] = targetScale * p.y + targetY0;
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "Transform from " + source + " to " + target;
+    }
+}
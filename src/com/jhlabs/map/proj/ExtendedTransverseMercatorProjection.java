@@ -0,0 +1,274 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+import com.jhlabs.map.*;
+
+/**
+ * Transverse Mercator Projection with the 6th order Krueger series by Poder
+ * and Engsager, as in the etmerc projection of PROJ.4. Unlike the USGS series
+ * of TransverseMercatorProjection, it is accurate to a few millimetres up to
+ * at least 30 degrees from the central meridian, and usable up to about 90.
+ *
+ * Reference: K. Engsager and K. Poder, A highly accurate world wide algorithm
+ * for the transverse Mercator mapping (almost), 2007.
+ */
+public class ExtendedTransverseMercatorProjection extends TransverseMercatorProjection {
+
+    private final static int ORDER = 6;
+    /**
+     * Limit of the normalized easting, about 150 degrees.
+     */
+    private final static double MAX_EASTING = 2.623395162778;
+    /**
+     * Coefficients from geodetic to Gaussian latitude and back.
+     */
+    private double[] cgb, cbg;
+    /**
+     * Coefficients from normalized ellipsoidal northing/easting to spherical
+     * northing/easting and back.
+     */
+    private double[] utg, gtu;
+    /**
+     * Meridian quadrant, scaled to the projection scale factor.
+     */
+    private double Qn;
+    /**
+     * Radius vector northing of the origin latitude.
+     */
+    private double Zb;
+
+    public ExtendedTransverseMercatorProjection() {
+    }
+
+    /**
+     * Set up a projection suitable for State Plane Coordinates.
+     */
+    public ExtendedTransverseMercatorProjection(Ellipsoid ellipsoid, double lon_0, double lat_0, double k, double x_0, double y_0) {
+        super(ellipsoid, lon_0, lat_0, k, x_0, y_0);
+    }
+
+    /**
+     * Compute the constants of the Krueger series instead of those of the
+     * Transverse Mercator series, which are not used.
+     */
+    protected void initializeSeries() {
+        double f = es / (1 + Math.sqrt(1 - es));
+        double n = f / (2 - f);
+        double np = n;
+        cgb = new double[ORDER];
+        cbg = new double[ORDER];
+        utg = new double[ORDER];
+        gtu = new double[ORDER];
+
+        cgb[0] = n * (2 + n * (-2 / 3.0 + n * (-2 + n * (116 / 45.0 + n * (26 / 45.0 + n * (-2854 / 675.0))))));
+        cbg[0] = n * (-2 + n * (2 / 3.0 + n * (4 / 3.0 + n * (-82 / 45.0 + n * (32 / 45.0 + n * (4642 / 4725.0))))));
+        np *= n;
+        cgb[1] = np * (7 / 3.0 + n * (-8 / 5.0 + n * (-227 / 45.0 + n * (2704 / 315.0 + n * (2323 / 945.0)))));
+        cbg[1] = np * (5 / 3.0 + n * (-16 / 15.0 + n * (-13 / 9.0 + n * (904 / 315.0 + n * (-1522 / 945.0)))));
+        np *= n;
+        cgb[2] = np * (56 / 15.0 + n * (-136 / 35.0 + n * (-1262 / 105.0 + n * (73814 / 2835.0))));
+        cbg[2] = np * (-26 / 15.0 + n * (34 / 21.0 + n * (8 / 5.0 + n * (-12686 / 2835.0))));
+        np *= n;
+        cgb[3] = np * (4279 / 630.0 + n * (-332 / 35.0 + n * (-399572 / 14175.0)));
+        cbg[3] = np * (1237 / 630.0 + n * (-12 / 5.0 + n * (-24832 / 14175.0)));
+        np *= n;
+        cgb[4] = np * (4174 / 315.0 + n * (-144838 / 6237.0));
+        cbg[4] = np * (-734 / 315.0 + n * (109598 / 31185.0));
+        np *= n;
+        cgb[5] = np * (601676 / 22275.0);
+        cbg[5] = np * (444337 / 155925.0);
+
+        np = n * n;
+        Qn = scaleFactor / (1 + n) * (1 + np * (1 / 4.0 + np * (1 / 64.0 + np / 256.0)));
+
+        utg[0] = n * (-0.5 + n * (2 / 3.0 + n * (-37 / 96.0 + n * (1 / 360.0 + n * (81 / 512.0 + n * (-96199 / 604800.0))))));
+        gtu[0] = n * (0.5 + n * (-2 / 3.0 + n * (5 / 16.0 + n * (41 / 180.0 + n * (-127 / 288.0 + n * (7891 / 37800.0))))));
+        utg[1] = np * (-1 / 48.0 + n * (-1 / 15.0 + n * (437 / 1440.0 + n * (-46 / 105.0 + n * (1118711 / 3870720.0)))));
+        gtu[1] = np * (13 / 48.0 + n * (-3 / 5.0 + n * (557 / 1440.0 + n * (281 / 630.0 + n * (-1983433 / 1935360.0)))));
+        np *= n;
+        utg[2] = np * (-17 / 480.0 + n * (37 / 840.0 + n * (209 / 4480.0 + n * (-5569 / 90720.0))));
+        gtu[2] = np * (61 / 240.0 + n * (-103 / 140.0 + n * (15061 / 26880.0 + n * (167603 / 181440.0))));
+        np *= n;
+        utg[3] = np * (-4397 / 161280.0 + n * (11 / 504.0 + n * (830251 / 7257600.0)));
+        gtu[3] = np * (49561 / 161280.0 + n * (-179 / 168.0 + n * (6601661 / 7257600.0)));
+        np *= n;
+        utg[4] = np * (-4583 / 161280.0 + n * (108847 / 3991680.0));
+        gtu[4] = np * (34729 / 80640.0 + n * (-3418889 / 1995840.0));
+        np *= n;
+        utg[5] = np * (-20648693 / 638668800.0);
+        gtu[5] = np * (212378941 / 319334400.0);
+
+        double Z = gatg(cbg, projectionLatitude);
+        Zb = -Qn * (Z + clens(gtu, 2 * Z));
+    }
+
+    /**
+     * Converts between geodetic and Gaussian latitude with a Clenshaw sum.
+     */
+    private static double gatg(double[] p, double B) {
+        double cos2B = 2 * Math.cos(2 * B);
+        double h1 = p[ORDER - 1], h2 = 0, h = h1;
+        for (int i = ORDER - 2; i >= 0; i--) {
+            h = -h2 + cos2B * h1 + p[i];
+            h2 = h1;
+            h1 = h;
+        }
+        return B + h * Math.sin(2 * B);
+    }
+
+    /**
+     * Real Clenshaw sum of a sine series.
+     */
+    private static double clens(double[] a, double arg) {
+        double r = 2 * Math.cos(arg);
+        double hr1 = 0, hr2, hr = a[ORDER - 1];
+        for (int i = ORDER - 2; i >= 0; i--) {
+            hr2 = hr1;
+            hr1 = hr;
+            hr = -hr2 + r * hr1 + a[i];
+        }
+        return Math.sin(arg) * hr;
+    }
+
+    /**
+     * Complex Clenshaw sum of a sine series. The real part of the sum is
+     * added to out.x and the imaginary part to out.y.
+     */
+    private static void clenS(double[] a, double argR, double argI, Point2D out) {
+        double sinR = Math.sin(argR);
+        double cosR = Math.cos(argR);
+        double sinhI = Math.sinh(argI);
+        double coshI = Math.cosh(argI);
+        double r = 2 * cosR * coshI;
+        double i = -2 * sinR * sinhI;
+        double hr = a[ORDER - 1], hi = 0, hr1 = 0, hi1 = 0, hr2, hi2;
+        for (int k = ORDER - 2; k >= 0; k--) {
+            hr2 = hr1;
+            hi2 = hi1;
+            hr1 = hr;
+            hi1 = hi;
+            hr = -hr2 + r * hr1 - i * hi1 + a[k];
+            hi = -hi2 + i * hr1 + r * hi1;
+        }
+        r = sinR * coshI;
+        i = cosR * sinhI;
+        out.x += r * hr - i * hi;
+        out.y += r * hi + i * hr;
+    }
+
+    /**
+     * Forward projection; out.x receives the northing and out.y the easting.
+     */
+    private void forward(double lam, double phi, Point2D out) {
+        // geodetic to Gaussian latitude
+        double Cn = gatg(cbg, phi);
+        // Gaussian latitude and longitude to complementary spherical latitude
+        double sinCn = Math.sin(Cn);
+        double cosCn = Math.cos(Cn);
+        double sinCe = Math.sin(lam);
+        double cosCe = Math.cos(lam);
+        Cn = Math.atan2(sinCn, cosCe * cosCn);
+        double Ce = Math.atan2(sinCe * cosCn, MapMath.hypot(sinCn, cosCn * cosCe));
+        // complementary spherical northing/easting to normalized ellipsoidal northing/easting
+        double t = Math.tan(Ce);
+        Ce = Math.log(t + Math.sqrt(1 + t * t));
+        out.x = Cn;
+        out.y = Ce;
+        clenS(gtu, 2 * Cn, 2 * Ce, out);
+        if (Math.abs(out.y) > MAX_EASTING) {
+            throw new ProjectionException("F_ERROR");
+        }
+    }
+
+    /**
+     * Inverse projection of normalized northing Cn and easting Ce; out.x
+     * receives the longitude and out.y the latitude.
+     */
+    private void inverse(double Cn, double Ce, Point2D out) {
+        if (Math.abs(Ce) > MAX_EASTING) {
+            throw new ProjectionException("I_ERROR");
+        }
+        // normalized northing/easting to complementary spherical latitude and longitude
+        out.x = Cn;
+        out.y = Ce;
+        clenS(utg, 2 * Cn, 2 * Ce, out);
+        Cn = out.x;
+        Ce = Math.atan(Math.sinh(out.y));
+        // complementary spherical latitude to Gaussian latitude and longitude
+        double sinCn = Math.sin(Cn);
+        double cosCn = Math.cos(Cn);
+        double sinCe = Math.sin(Ce);
+        double cosCe = Math.cos(Ce);
+        Ce = Math.atan2(sinCe, cosCe * cosCn);
+        Cn = Math.atan2(sinCn * cosCe, MapMath.hypot(sinCe, cosCe * cosCn));
+        // Gaussian to geodetic latitude
+        out.x = Ce;
+        out.y = gatg(cgb, Cn);
+    }
+
+    public Point2D project(double lplam, double lpphi, Point2D xy) {
+        forward(lplam, lpphi, xy);
+        double northing = xy.x;
+        xy.x = Qn * xy.y;
+        xy.y = Qn * northing + Zb;
+        return xy;
+    }
+
+    public Point2D projectInverse(double x, double y, Point2D lp) {
+        inverse((y - Zb) / Qn, x / Qn, lp);
+        return lp;
+    }
+
+    protected void partialDerivatives(double lplam, double lpphi, double x, double y, double[] d) {
+        double chi = gatg(cbg, lpphi);
+        double sinChi = Math.sin(chi);
+        double cosChi = Math.cos(chi);
+        double sinLam = Math.sin(lplam);
+        double cosLam = Math.cos(lplam);
+        double Cn = Math.atan2(sinChi, cosLam * cosChi);
+        double t = Math.tan(Math.atan2(sinLam * cosChi, MapMath.hypot(sinChi, cosChi * cosLam)));
+        double Ce = Math.log(t + Math.sqrt(1 + t * t));
+        // derivatives of the spherical northing and easting by longitude
+        double D = 1 - sinLam * sinLam * cosChi * cosChi;
+        double dn = sinChi * cosChi * sinLam / D;
+        double de = cosChi * cosLam / D;
+        // derivative of the series, 1 + sum of 2j gtu[j] cos(2j (Cn + i Ce)),
+        // with the cosines from the Chebyshev recurrence
+        double cr = Math.cos(2 * Cn) * Math.cosh(2 * Ce);
+        double ci = -Math.sin(2 * Cn) * Math.sinh(2 * Ce);
+        double pr = 1, pi = 0;
+        double tr = cr, ti = ci, tr1 = 1, ti1 = 0;
+        for (int j = 1; j <= ORDER; j++) {
+            pr += 2 * j * gtu[j - 1] * tr;
+            pi += 2 * j * gtu[j - 1] * ti;
+            double tr2 = 2 * (cr * tr - ci * ti) - tr1;
+            double ti2 = 2 * (cr * ti + ci * tr) - ti1;
+            tr1 = tr;
+            ti1 = ti;
+            tr = tr2;
+            ti = ti2;
+        }
+        d[0] = Qn * (pr * de + pi * dn);
+        d[2] = Qn * (pr * dn - pi * de);
+        conformalDerivatives(lpphi, d);
+    }
+
+    public String toString() {
+        return "Extended Transverse Mercator";
+    }
+}
@@ -34,6 +34,11 @@ public class LinearProjection extends Projection {
 		}
 	}
 
+	public void transform(double[] srcX, double[] srcY, int srcOffset, double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+		System.arraycopy(srcX, srcOffset, dstX, dstOffset, numPoints);
+		System.arraycopy(srcY, srcOffset, dstY, dstOffset, numPoints);
+	}
+
 	public Point2D inverseTransform(Point2D src, Point2D dst) {
 		dst.x = src.x;
 		dst.y = src.y;
@@ -47,6 +52,11 @@ public class LinearProjection extends Projection {
 		}
 	}
 
+	public void inverseTransform(double[] srcX, double[] srcY, int srcOffset, double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+		System.arraycopy(srcX, srcOffset, dstX, dstOffset, numPoints);
+		System.arraycopy(srcY, srcOffset, dstY, dstOffset, numPoints);
+	}
+
 	public boolean hasInverse() {
 		return true;
 	}
@@ -0,0 +1,212 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Projects binary files of interleaved x/y pairs of 64 bit floating point
+ * numbers. The input and output files are memory-mapped window by window, and
+ * the windows are projected in parallel, each with its own clone of the
+ * projection. Files can be larger than the heap. The output file may be the
+ * same as the input file. Points which cannot be projected are written as
+ * NaN, and the output is forced to the storage device before returning.
+ */
+public class MappedFileTransformer {
+
+    /**
+     * The default number of points in a window, 64 MB of coordinates.
+     */
+    public final static int DEFAULT_WINDOW_SIZE = 1 << 22;
+    /**
+     * The number of points copied from a window and projected at once.
+     */
+    private final static int BATCH_SIZE = 512;
+    private final Projection projection;
+    private final ForkJoinPool pool;
+    private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Create a transformer using the common ForkJoinPool.
+     * @param projection An initialized projection. It is cloned and not modified.
+     */
+    public MappedFileTransformer(Projection projection) {
+        this(projection, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a transformer using the passed ForkJoinPool.
+     * @param projection An initialized projection. It is cloned and not modified.
+     * @param pool The pool projecting the windows.
+     */
+    public MappedFileTransformer(Projection projection, ForkJoinPool pool) {
+        this.projection = (Projection) projection.clone();
+        this.pool = pool;
+    }
+
+    /**
+     * Set the byte order of the input and output files. This is little endian by default.
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Set the number of points mapped and projected at once.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > Integer.MAX_VALUE / 16) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Project a file of lon/lat points (in degrees), producing a file of
+     * points in metres.
+     * @return The number of projected points.
+     */
+    public long transform(File src, File dst) throws IOException {
+        return transformFile(src, dst, false);
+    }
+
+    /**
+     * Inverse-project a file of points (in metres), producing a file of
+     * lon/lat points in degrees.
+     * @return The number of projected points.
+     */
+    public long inverseTransform(File src, File dst) throws IOException {
+        return transformFile(src, dst, true);
+    }
+
+    private long transformFile(File src, File dst, final boolean inverse) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(src, "r");
+        RandomAccessFile out = null;
+        try {
+            long length = in.length();
+            if (length % 16 != 0) {
+                throw new IOException(src + ": length is not a multiple of 16 bytes");
+            }
+            out = new RandomAccessFile(dst, "rw");
+            out.setLength(length);
+            final FileChannel inChannel = in.getChannel();
+            final FileChannel outChannel = out.getChannel();
+            final long numPoints = length / 16;
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (long first = 0; first < numPoints; first += windowSize) {
+                final long position = first * 16;
+                final int n = (int) Math.min(windowSize, numPoints - first);
+                tasks.add(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+                        DoubleBuffer srcBuffer = inChannel.map(FileChannel.MapMode.READ_ONLY, position, n * 16L).order(byteOrder).asDoubleBuffer();
+                        MappedByteBuffer dstMap = outChannel.map(FileChannel.MapMode.READ_WRITE, position, n * 16L);
+                        DoubleBuffer dstBuffer = dstMap.order(byteOrder).asDoubleBuffer();
+                        transformWindow((Projection) projection.clone(), srcBuffer, dstBuffer, n, inverse);
+                        dstMap.force();
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException(cause.toString());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return numPoints;
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Project a window in batches. If a batch fails, it is projected point
+     * by point, and the points that fail are written as NaN.
+     */
+    private static void transformWindow(Projection p, DoubleBuffer src, DoubleBuffer dst, int numPoints, boolean inverse) {
+        double[] points = new double[2 * Math.min(numPoints, BATCH_SIZE)];
+        double[] result = new double[points.length];
+        Point2D q = new Point2D();
+        for (int first = 0; first < numPoints; first += BATCH_SIZE) {
+            int n = Math.min(BATCH_SIZE, numPoints - first);
+            for (int i = 0; i < 2 * n; i++) {
+                points[i] = src.get(2 * first + i);
+            }
+            try {
+                if (inverse) {
+                    p.inverseTransform(points, 0, result, 0, n);
+                } else {
+                    p.transform(points, 0, result, 0, n);
+                }
+            } catch (RuntimeException e) {
+                // project point by point, marking the points that fail
+                for (int i = 0; i < 2 * n; i += 2) {
+                    q.x = points[i];
+                    q.y = points[i + 1];
+                    try {
+                        if (inverse) {
+                            p.inverseTransform(q, q);
+                        } else {
+                            p.transform(q, q);
+                        }
+                        result[i] = q.x;
+                        result[i + 1] = q.y;
+                    } catch (RuntimeException ex) {
+                        result[i] = result[i + 1] = Double.NaN;
+                    }
+                }
+            }
+            for (int i = 0; i < 2 * n; i++) {
+                dst.put(2 * first + i, result[i]);
+            }
+        }
+    }
+}
@@ -28,18 +28,42 @@ import com.jhlabs.map.*;
 
 public class MercatorProjection extends CylindricalProjection {
 
+    private boolean conformalSeries = false;
+    /**
+     * Coefficients of the conformal latitude series, null if not used.
+     */
+    private double[] apc;
+
     public MercatorProjection() {
         minLatitude = MapMath.degToRad(-85);
         maxLatitude = MapMath.degToRad(85);
     }
 
+    public void initialize() {
+        super.initialize();
+        apc = conformalSeries && !spherical ? MapMath.confset(es) : null;
+    }
+
+    /**
+     * If true, the conformal latitude is computed with the series of
+     * MapMath.confset; see MapMath.tsfn(double, double, double[]).
+     * initialize must be called after changing this.
+     */
+    public void setConformalSeries(boolean conformalSeries) {
+        this.conformalSeries = conformalSeries;
+    }
+
+    public boolean isConformalSeries() {
+        return conformalSeries;
+    }
+
     public Point2D project(double lam, double phi, Point2D out) {
         if (spherical) {
             out.x = scaleFactor * lam;
             out.y = scaleFactor * Math.log(Math.tan(MapMath.QUARTERPI + 0.5 * phi));
         } else {
             out.x = scaleFactor * lam;
-            out.y = -scaleFactor * Math.log(MapMath.tsfn(phi, Math.sin(phi), e));
+            out.y = -scaleFactor * Math.log(MapMath.tsfn(phi, e, apc));
         }
         return out;
     }
@@ -49,12 +73,86 @@ public class MercatorProjection extends CylindricalProjection {
             out.y = MapMath.HALFPI - 2. * Math.atan(Math.exp(-y / scaleFactor));
             out.x = x / scaleFactor;
         } else {
-            out.y = MapMath.phi2(Math.exp(-y / scaleFactor), e);
+            out.y = MapMath.phi2(Math.exp(-y / scaleFactor), e, apc);
             out.x = x / scaleFactor;
         }
         return out;
     }
 
+    protected void partialDerivatives(double lam, double phi, double x, double y, double[] d) {
+        d[0] = scaleFactor;
+        d[2] = 0;
+        conformalDerivatives(phi, d);
+    }
+
+    /**
+     * Projects the points with the formulas of project inline, unless a
+     * subclass may have changed them.
+     */
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        if (getClass() != MercatorProjection.class) {
+            super.transform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+            return;
+        }
+        final double lon0 = projectionLongitude;
+        final double k = scaleFactor;
+        final double scale = totalScale;
+        final double x0 = totalFalseEasting;
+        final double y0 = totalFalseNorthing;
+        for (int i = 0; i < numPoints; i++) {
+            double lam = srcPoints[srcOffset++] * DTR;
+            double phi = srcPoints[srcOffset++] * DTR;
+            if (lon0 != 0) {
+                lam = MapMath.normalizeLongitude(lam - lon0);
+            }
+            double y;
+            if (spherical) {
+                y = k * Math.log(Math.tan(MapMath.QUARTERPI + 0.5 * phi));
+            } else {
+                y = -k * Math.log(MapMath.tsfn(phi, e, apc));
+            }
+            dstPoints[dstOffset++] = scale * (k * lam) + x0;
+            dstPoints[dstOffset++] = scale * y + y0;
+        }
+    }
+
+    /**
+     * Inverse-projects the points with the formulas of projectInverse
+     * inline, unless a subclass may have changed them.
+     */
+    public void inverseTransform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        if (getClass() != MercatorProjection.class) {
+            super.inverseTransform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+            return;
+        }
+        final double lon0 = projectionLongitude;
+        final double k = scaleFactor;
+        final double scale = totalScale;
+        final double x0 = totalFalseEasting;
+        final double y0 = totalFalseNorthing;
+        for (int i = 0; i < numPoints; i++) {
+            double x = (srcPoints[srcOffset++] - x0) / scale;
+            double y = (srcPoints[srcOffset++] - y0) / scale;
+            double phi;
+            if (spherical) {
+                phi = MapMath.HALFPI - 2. * Math.atan(Math.exp(-y / k));
+            } else {
+                phi = MapMath.phi2(Math.exp(-y / k), e, apc);
+            }
+            double lam = x / k;
+            if (lam < -Math.PI) {
+                lam = -Math.PI;
+            } else if (lam > Math.PI) {
+                lam = Math.PI;
+            }
+            if (lon0 != 0) {
+                lam = MapMath.normalizeLongitude(lam + lon0);
+            }
+            dstPoints[dstOffset++] = lam * RTD;
+            dstPoints[dstOffset++] = phi * RTD;
+        }
+    }
+
     public boolean hasInverse() {
         return true;
     }
@@ -29,6 +29,23 @@ public class NullProjection extends Projection {
 		dst.y = src.y;
 		return dst;
 	}
+
+	public void transform(double[] srcX, double[] srcY, int srcOffset, double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+		System.arraycopy(srcX, srcOffset, dstX, dstOffset, numPoints);
+		System.arraycopy(srcY, srcOffset, dstY, dstOffset, numPoints);
+	}
+
+	public Point2D inverseTransform( Point2D src, Point2D dst ) {
+		dst.x = src.x;
+		dst.y = src.y;
+		return dst;
+	}
+
+	public void inverseTransform(double[] srcX, double[] srcY, int srcOffset, double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+		System.arraycopy(srcX, srcOffset, dstX, dstOffset, numPoints);
+		System.arraycopy(srcY, srcOffset, dstY, dstOffset, numPoints);
+	}
+
 	/*
 	public Shape projectPath(Shape path, AffineTransform t, boolean filled) {
 		if ( t != null )
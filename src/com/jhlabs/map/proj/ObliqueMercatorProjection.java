@@ -32,6 +32,11 @@ public class ObliqueMercatorProjection extends CylindricalProjection {
     private final static double TOL = 1.0e-7;
     private double alpha, lamc, lam1, phi1, lam2, phi2, Gamma, al, bl, el, singam, cosgam, sinrot, cosrot, u_0;
     private boolean ellips, rot;
+    private boolean conformalSeries = false;
+    /**
+     * Coefficients of the conformal latitude series, null if not used.
+     */
+    private double[] apc;
 
     public ObliqueMercatorProjection() {
         ellipsoid = Ellipsoid.WGS_1984;
@@ -155,6 +160,20 @@ public class ObliqueMercatorProjection extends CylindricalProjection {
         if (projectionLatitude < 0.) {
             u_0 = -u_0;
         }
+        apc = conformalSeries && !spherical ? MapMath.confset(es) : null;
+    }
+
+    /**
+     * If true, the conformal latitude is computed with the series of
+     * MapMath.confset; see MapMath.tsfn(double, double, double[]).
+     * initialize must be called after changing this.
+     */
+    public void setConformalSeries(boolean conformalSeries) {
+        this.conformalSeries = conformalSeries;
+    }
+
+    public boolean isConformalSeries() {
+        return conformalSeries;
     }
 
     public Point2D project(double lam, double phi, Point2D xy) {
@@ -165,7 +184,7 @@ public class ObliqueMercatorProjection extends CylindricalProjection {
             ul = phi < 0. ? -singam : singam;
             us = al * phi / bl;
         } else {
-            q = el / (!spherical ? Math.pow(MapMath.tsfn(phi, Math.sin(phi), e), bl)
+            q = el / (!spherical ? Math.pow(MapMath.tsfn(phi, e, apc), bl)
                     : Math.tan(.5 * (MapMath.HALFPI - phi)));
             s = .5 * (q - 1. / q);
             ul = 2. * (s * singam - vl * cosgam) / (q + 1. / q);
@@ -194,6 +213,43 @@ public class ObliqueMercatorProjection extends CylindricalProjection {
         return xy;
     }
 
+    protected void partialDerivatives(double lam, double phi, double x, double y, double[] d) {
+        if (Math.abs(Math.abs(phi) - MapMath.HALFPI) <= EPS10) {
+            super.partialDerivatives(lam, phi, x, y, d);
+            return;
+        }
+        double sinphi = Math.sin(phi);
+        // derivative of the log of q by latitude
+        double dq = (spherical ? 1. : bl) * one_es / ((1. - es * sinphi * sinphi) * Math.cos(phi));
+        double q = el / (!spherical ? Math.pow(MapMath.tsfn(phi, e, apc), bl)
+                : Math.tan(.5 * (MapMath.HALFPI - phi)));
+        double s = .5 * (q - 1. / q);
+        double t = .5 * (q + 1. / q);
+        double vl = Math.sin(bl * lam);
+        double con = Math.cos(bl * lam);
+        double ul = (s * singam - vl * cosgam) / t;
+        double num = s * cosgam + vl * singam;
+        double den = con * con + num * num;
+        double ulLam = -bl * con * cosgam / t;
+        double ulPhi = dq * (t * t * singam - (s * singam - vl * cosgam) * s) / (t * t);
+        double usLam = al * (singam * con * con + num * vl) / den;
+        double usPhi = al * dq * con * t * cosgam / (bl * den);
+        double r = -al / (bl * (1. - ul * ul));
+        double vsLam = r * ulLam;
+        double vsPhi = r * ulPhi;
+        if (!rot) {
+            d[0] = usLam;
+            d[1] = usPhi;
+            d[2] = vsLam;
+            d[3] = vsPhi;
+        } else {
+            d[0] = vsLam * cosrot + usLam * sinrot;
+            d[1] = vsPhi * cosrot + usPhi * sinrot;
+            d[2] = usLam * cosrot - vsLam * sinrot;
+            d[3] = usPhi * cosrot - vsPhi * sinrot;
+        }
+    }
+
     public Point2D projectInverse(double x, double y, Point2D lp) {
         double q, s, ul, us, vl, vs;
 
@@ -215,7 +271,7 @@ public class ObliqueMercatorProjection extends CylindricalProjection {
         } else {
             lp.y = el / Math.sqrt((1. + ul) / (1. - ul));
             if (!spherical) {
-                lp.y = MapMath.phi2(Math.pow(lp.y, 1. / bl), e);
+                lp.y = MapMath.phi2(Math.pow(lp.y, 1. / bl), e, apc);
             } else {
                 lp.y = MapMath.HALFPI - 2. * Math.atan(lp.y);
             }
@@ -0,0 +1,163 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Projects large arrays of interleaved lon/lat points on an executor. On a
+ * ForkJoinPool the array is split in halves until a part has no more than
+ * threshold points; other executors are passed one task for each part of
+ * threshold points. Each part is projected with its own clone of the
+ * projection, as projections are not thread-safe. Every point is computed by
+ * the same code as transform(double[]...), so the result is identical to a
+ * sequential call.
+ */
+public class ParallelTransformer {
+
+    /**
+     * The default maximum number of points projected by one task.
+     */
+    public final static int DEFAULT_THRESHOLD = 4096;
+    private final Projection projection;
+    private final Executor executor;
+    private int threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * Create a transformer using the common ForkJoinPool.
+     * @param projection An initialized projection. It is cloned and not modified.
+     */
+    public ParallelTransformer(Projection projection) {
+        this(projection, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a transformer using the passed executor, such as a ForkJoinPool
+     * or an ExecutorService.
+     * @param projection An initialized projection. It is cloned and not modified.
+     * @param executor The executor running the tasks.
+     */
+    public ParallelTransformer(Projection projection, Executor executor) {
+        this.projection = (Projection) projection.clone();
+        this.executor = executor;
+    }
+
+    /**
+     * Set the maximum number of points projected by one task.
+     */
+    public void setThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Project a number of lat/long points (in degrees), producing a result in metres.
+     */
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        run(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, false);
+    }
+
+    /**
+     * Inverse-project a number of points (in metres), producing a lat/long result in degrees.
+     */
+    public void inverseTransform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
+        run(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, true);
+    }
+
+    private void run(final double[] srcPoints, final int srcOffset, final double[] dstPoints, final int dstOffset,
+            int numPoints, final boolean inverse) {
+        if (executor instanceof ForkJoinPool) {
+            ((ForkJoinPool) executor).invoke(new TransformTask(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, inverse));
+            return;
+        }
+        int parts = numPoints / threshold + (numPoints % threshold != 0 ? 1 : 0);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[parts];
+        for (int i = 0; i < parts; i++) {
+            final int first = i * threshold;
+            final int n = Math.min(threshold, numPoints - first);
+            futures[i] = CompletableFuture.runAsync(new Runnable() {
+
+                public void run() {
+                    project(srcPoints, srcOffset + 2 * first, dstPoints, dstOffset + 2 * first, n, inverse);
+                }
+            }, executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Project a part of the array with a new clone of the projection.
+     */
+    private void project(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints, boolean inverse) {
+        Projection p = (Projection) projection.clone();
+        if (inverse) {
+            p.inverseTransform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+        } else {
+            p.transform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+        }
+    }
+
+    private class TransformTask extends RecursiveAction {
+
+        private final double[] srcPoints, dstPoints;
+        private final int srcOffset, dstOffset, numPoints;
+        private final boolean inverse;
+
+        TransformTask(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints, boolean inverse) {
+            this.srcPoints = srcPoints;
+            this.srcOffset = srcOffset;
+            this.dstPoints = dstPoints;
+            this.dstOffset = dstOffset;
+            this.numPoints = numPoints;
+            this.inverse = inverse;
+        }
+
+        protected void compute() {
+            if (numPoints <= threshold) {
+                project(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, inverse);
+            } else {
+                int half = numPoints / 2;
+                invokeAll(new TransformTask(srcPoints, srcOffset, dstPoints, dstOffset, half, inverse),
+                        new TransformTask(srcPoints, srcOffset + 2 * half, dstPoints, dstOffset + 2 * half, numPoints - half, inverse));
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.jhlabs.map.proj;
 import com.jhlabs.geom.*;
 import com.jhlabs.map.*;
 import java.io.Serializable;
+import java.nio.DoubleBuffer;
 
 /**
  * The superclass for all map projections
@@ -95,6 +96,10 @@ public abstract class Projection implements Cloneable, Serializable {
      * The ellipsoid used by this projection
      */
     protected Ellipsoid ellipsoid;
+    /**
+     * The datum of this projection, or null if it is unknown
+     */
+    protected Datum datum;
     /**
      * True if this projection is using a sphere (es == 0)
      */
@@ -114,19 +119,114 @@ public abstract class Projection implements Cloneable, Serializable {
     /**
      * The total scale factor = Earth radius * units
      */
-    private double totalScale = 0;
+    protected double totalScale = 0;
     /**
      * falseEasting, adjusted to the appropriate units using fromMetres
      */
-    private double totalFalseEasting = 0;
+    protected double totalFalseEasting = 0;
     /**
      * falseNorthing, adjusted to the appropriate units using fromMetres
      */
-    private double totalFalseNorthing = 0;
+    protected double totalFalseNorthing = 0;
     // Some useful constants
     protected final static double EPS10 = 1e-10;
     protected final static double RTD = 180.0 / Math.PI;
     protected final static double DTR = Math.PI / 180.0;
+    /**
+     * Number of points copied from and to buffers in one batch.
+     */
+    private final static int BUFFER_BATCH_SIZE = 512;
+    private final static int NEWTON_MAX_ITERATIONS = 20;
+    private final static double NEWTON_TOLERANCE = 1e-12;
+    private final static double DERIVATIVE_STEP = 1e-7;
+    /**
+     * Spacing of the start points of newtonInverse in radians.
+     */
+    private final static double INVERSE_GRID_STEP = 10 * DTR;
+    /**
+     * Start points of newtonInverse, built on first use.
+     */
+    private transient InverseGrid inverseGrid;
+
+    /**
+     * The start points of newtonInverse as x, y, lon and lat quadruples,
+     * indexed by x.
+     */
+    private static class InverseGrid {
+
+        final double[] points;
+        /**
+         * The offsets of the points in points, in increasing order of x.
+         */
+        final int[] order;
+
+        InverseGrid(double[] points) {
+            this.points = points;
+            order = new int[points.length / 4];
+            // an insertion sort, as the grid is small and built once
+            for (int n = 0; n < order.length; n++) {
+                int i = 4 * n;
+                int j = n;
+                while (j > 0 && points[order[j - 1]] > points[i]) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = i;
+            }
+        }
+
+        /**
+         * Returns the offset of the point nearest to x/y, or -1 if there are
+         * no points. The search runs both ways in x from x, until the
+         * difference in x alone is more than the nearest distance found, so
+         * it gives the same point as a search of the whole grid.
+         */
+        int nearest(double x, double y) {
+            int lo = 0, hi = order.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (points[order[mid]] < x) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            int nearest = -1;
+            double min = Double.MAX_VALUE;
+            int right = lo, left = lo - 1;
+            while (right < order.length || left >= 0) {
+                if (right < order.length) {
+                    int i = order[right++];
+                    double dx = points[i] - x;
+                    if (dx * dx > min) {
+                        right = order.length;
+                    } else {
+                        double dy = points[i + 1] - y;
+                        double d = dx * dx + dy * dy;
+                        if (d < min || (d == min && i < nearest)) {
+                            min = d;
+                            nearest = i;
+                        }
+                    }
+                }
+                if (left >= 0) {
+                    int i = order[left--];
+                    double dx = points[i] - x;
+                    if (dx * dx > min) {
+                        left = -1;
+                    } else {
+                        double dy = points[i + 1] - y;
+                        double d = dx * dx + dy * dy;
+                        if (d < min || (d == min && i < nearest)) {
+                            min = d;
+                            nearest = i;
+                        }
+                    }
+                }
+            }
+            return nearest;
+        }
+    }
 
     protected Projection() {
         setEllipsoid(Ellipsoid.SPHERE);
@@ -214,7 +314,14 @@ public abstract class Projection implements Cloneable, Serializable {
     }
 
     /**
-     * Project a number of lat/long points (in degrees), producing a result in metres
+     * Project a number of lat/long points (in degrees), producing a result in metres.
+     * Points are stored as interleaved lon/lat pairs; srcPoints and dstPoints
+     * may be the same array.
+     * This default implementation projects one point at a time. A projection
+     * whose formulas are short enough that the call of project matters may
+     * override it with a loop that does the projection inline, as
+     * MercatorProjection does. Such a loop must fall back to this method for
+     * subclasses, which may change project.
      */
     public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
         Point2D in = new Point2D();
@@ -243,6 +350,46 @@ public abstract class Projection implements Cloneable, Serializable {
         }
     }
 
+    /**
+     * Project a number of lat/long points (in degrees) stored in separate
+     * longitude and latitude arrays, producing a result in metres in separate
+     * x and y arrays. The source and destination arrays may be the same.
+     * This is a convenience for data kept in this layout; it is not faster
+     * than transform(double[], int, double[], int, int), as the time goes
+     * into the projection itself.
+     */
+    public void transform(double[] srcX, double[] srcY, int srcOffset,
+            double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+        Point2D out = new Point2D();
+        for (int i = 0; i < numPoints; i++) {
+            double lon = srcX[srcOffset + i] * DTR;
+            if (projectionLongitude != 0) {
+                lon = MapMath.normalizeLongitude(lon - projectionLongitude);
+            }
+            project(lon, srcY[srcOffset + i] * DTR, out);
+            dstX[dstOffset + i] = out.x;
+            dstY[dstOffset + i] = out.y;
+        }
+        scale(dstX, dstY, dstOffset, numPoints);
+    }
+
+    /**
+     * Apply the total scale and the false origin to projected coordinates
+     * on the unary sphere.
+     */
+    protected void scale(double[] x, double[] y, int offset, int numPoints) {
+        final double scale = totalScale;
+        final double x0 = totalFalseEasting;
+        final double y0 = totalFalseNorthing;
+        final int end = offset + numPoints;
+        for (int i = offset; i < end; i++) {
+            x[i] = scale * x[i] + x0;
+        }
+        for (int i = offset; i < end; i++) {
+            y[i] = scale * y[i] + y0;
+        }
+    }
+
     /**
      * Inverse-project a point (in metres), producing a lat/long result in degrees
      */
@@ -310,7 +457,9 @@ public abstract class Projection implements Cloneable, Serializable {
     }
 
     /**
-     * Inverse-project a number of points (in metres), producing a lat/long result in degrees
+     * Inverse-project a number of points (in metres), producing a lat/long result in degrees.
+     * As with transform, a projection may override this with a loop that
+     * does not call projectInverse.
      */
     public void inverseTransform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int numPoints) {
         Point2D in = new Point2D();
@@ -339,6 +488,207 @@ public abstract class Projection implements Cloneable, Serializable {
         }
     }
 
+    /**
+     * Inverse-project a number of points (in metres) stored in separate x and
+     * y arrays, producing a lat/long result in degrees in separate longitude
+     * and latitude arrays. The source and destination arrays may be the same.
+     * Like the forward method, this is a convenience for data kept in this
+     * layout.
+     */
+    public void inverseTransform(double[] srcX, double[] srcY, int srcOffset,
+            double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+        unscale(srcX, srcY, srcOffset, dstX, dstY, dstOffset, numPoints);
+        Point2D out = new Point2D();
+        for (int i = dstOffset; i < dstOffset + numPoints; i++) {
+            projectInverse(dstX[i], dstY[i], out);
+            if (out.x < -Math.PI) {
+                out.x = -Math.PI;
+            } else if (out.x > Math.PI) {
+                out.x = Math.PI;
+            }
+            if (projectionLongitude != 0) {
+                out.x = MapMath.normalizeLongitude(out.x + projectionLongitude);
+            }
+            dstX[i] = out.x * RTD;
+            dstY[i] = out.y * RTD;
+        }
+    }
+
+    /**
+     * Remove the false origin and the total scale from projected coordinates,
+     * producing coordinates on the unary sphere.
+     */
+    protected void unscale(double[] srcX, double[] srcY, int srcOffset,
+            double[] dstX, double[] dstY, int dstOffset, int numPoints) {
+        final double scale = totalScale;
+        final double x0 = totalFalseEasting;
+        final double y0 = totalFalseNorthing;
+        for (int i = 0; i < numPoints; i++) {
+            dstX[dstOffset + i] = (srcX[srcOffset + i] - x0) / scale;
+        }
+        for (int i = 0; i < numPoints; i++) {
+            dstY[dstOffset + i] = (srcY[srcOffset + i] - y0) / scale;
+        }
+    }
+
+    /**
+     * Project a number of lat/long points (in degrees) stored in a buffer,
+     * producing a result in metres. The buffers can be direct or memory-mapped;
+     * the byte order is the one of the ByteBuffer the DoubleBuffer views.
+     * Points are copied in small batches to transform(double[]...), the
+     * coordinates never pass through a heap copy of the whole range.
+     * @param src The source buffer.
+     * @param srcIndex The absolute index of the longitude of the first point.
+     * @param srcStride The number of doubles from one point to the next (at least 2).
+     * @param dst The destination buffer, can be the same as src.
+     * @param dstIndex The absolute index of the x coordinate of the first point.
+     * @param dstStride The number of doubles from one point to the next (at least 2).
+     * @param numPoints The number of points to project.
+     */
+    public void transform(DoubleBuffer src, int srcIndex, int srcStride,
+            DoubleBuffer dst, int dstIndex, int dstStride, int numPoints) {
+        transformBuffer(src, srcIndex, srcStride, dst, dstIndex, dstStride, numPoints, false);
+    }
+
+    /**
+     * Inverse-project a number of points (in metres) stored in a buffer,
+     * producing a lat/long result in degrees. See transform(DoubleBuffer...).
+     */
+    public void inverseTransform(DoubleBuffer src, int srcIndex, int srcStride,
+            DoubleBuffer dst, int dstIndex, int dstStride, int numPoints) {
+        transformBuffer(src, srcIndex, srcStride, dst, dstIndex, dstStride, numPoints, true);
+    }
+
+    private void transformBuffer(DoubleBuffer src, int srcIndex, int srcStride,
+            DoubleBuffer dst, int dstIndex, int dstStride, int numPoints, boolean inverse) {
+        if (srcStride < 2 || dstStride < 2) {
+            throw new IllegalArgumentException("Stride must be at least 2");
+        }
+        double[] batch = new double[2 * Math.min(numPoints, BUFFER_BATCH_SIZE)];
+        while (numPoints > 0) {
+            int n = Math.min(numPoints, BUFFER_BATCH_SIZE);
+            for (int i = 0, j = srcIndex; i < n; i++, j += srcStride) {
+                batch[2 * i] = src.get(j);
+                batch[2 * i + 1] = src.get(j + 1);
+            }
+            if (inverse) {
+                inverseTransform(batch, 0, batch, 0, n);
+            } else {
+                transform(batch, 0, batch, 0, n);
+            }
+            for (int i = 0, j = dstIndex; i < n; i++, j += dstStride) {
+                dst.put(j, batch[2 * i]);
+                dst.put(j + 1, batch[2 * i + 1]);
+            }
+            srcIndex += n * srcStride;
+            dstIndex += n * dstStride;
+            numPoints -= n;
+        }
+    }
+
+    /**
+     * Project a number of lat/long points (in degrees) with more than two
+     * ordinates each, e.g. XYZ or XYZM records, producing a result in metres.
+     * The first two ordinates of each point are projected, the others are
+     * copied unchanged. srcPoints and dstPoints may be the same array.
+     * @param dimension The number of ordinates per point (at least 2).
+     */
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset,
+            int numPoints, int dimension) {
+        transformStrided(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, dimension, false);
+    }
+
+    /**
+     * Inverse-project a number of points (in metres) with more than two
+     * ordinates each, producing a lat/long result in degrees. The first two
+     * ordinates of each point are inverse-projected, the others are copied
+     * unchanged. srcPoints and dstPoints may be the same array.
+     * @param dimension The number of ordinates per point (at least 2).
+     */
+    public void inverseTransform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset,
+            int numPoints, int dimension) {
+        transformStrided(srcPoints, srcOffset, dstPoints, dstOffset, numPoints, dimension, true);
+    }
+
+    private void transformStrided(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset,
+            int numPoints, int dimension, boolean inverse) {
+        if (dimension < 2) {
+            throw new IllegalArgumentException("Dimension must be at least 2");
+        }
+        if (dimension == 2) {
+            if (inverse) {
+                inverseTransform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+            } else {
+                transform(srcPoints, srcOffset, dstPoints, dstOffset, numPoints);
+            }
+            return;
+        }
+        final boolean copyExtra = srcPoints != dstPoints || srcOffset != dstOffset;
+        double[] batch = new double[2 * Math.min(numPoints, BUFFER_BATCH_SIZE)];
+        while (numPoints > 0) {
+            int n = Math.min(numPoints, BUFFER_BATCH_SIZE);
+            for (int i = 0, j = srcOffset; i < n; i++, j += dimension) {
+                batch[2 * i] = srcPoints[j];
+                batch[2 * i + 1] = srcPoints[j + 1];
+            }
+            if (inverse) {
+                inverseTransform(batch, 0, batch, 0, n);
+            } else {
+                transform(batch, 0, batch, 0, n);
+            }
+            for (int i = 0, j = dstOffset, k = srcOffset; i < n; i++, j += dimension, k += dimension) {
+                if (copyExtra) {
+                    System.arraycopy(srcPoints, k + 2, dstPoints, j + 2, dimension - 2);
+                }
+                dstPoints[j] = batch[2 * i];
+                dstPoints[j + 1] = batch[2 * i + 1];
+            }
+            srcOffset += n * dimension;
+            dstOffset += n * dimension;
+            numPoints -= n;
+        }
+    }
+
+    /**
+     * Project a number of lat/long points (in degrees), producing a result in
+     * metres relative to a local origin, stored as floats. The origin is
+     * subtracted in double precision before narrowing, so that the result
+     * keeps its precision when the origin is close to the points, e.g. the
+     * corner of a map tile.
+     * @param originX The x coordinate of the local origin in metres.
+     * @param originY The y coordinate of the local origin in metres.
+     */
+    public void transform(double[] srcPoints, int srcOffset, float[] dstPoints, int dstOffset,
+            int numPoints, double originX, double originY) {
+        double[] batch = new double[2 * Math.min(numPoints, BUFFER_BATCH_SIZE)];
+        while (numPoints > 0) {
+            int n = Math.min(numPoints, BUFFER_BATCH_SIZE);
+            transform(srcPoints, srcOffset, batch, 0, n);
+            for (int i = 0; i < n; i++) {
+                dstPoints[dstOffset++] = (float) (batch[2 * i] - originX);
+                dstPoints[dstOffset++] = (float) (batch[2 * i + 1] - originY);
+            }
+            srcOffset += 2 * n;
+            numPoints -= n;
+        }
+    }
+
+    /**
+     * Inverse-project a number of float points (in metres) relative to a
+     * local origin, producing a lat/long result in degrees. The origin is
+     * added in double precision.
+     * @param originX The x coordinate of the local origin in metres.
+     * @param originY The y coordinate of the local origin in metres.
+     */
+    public void inverseTransform(float[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset,
+            int numPoints, double originX, double originY) {
+        for (int i = 0; i < numPoints; i++) {
+            dstPoints[dstOffset + 2 * i] = srcPoints[srcOffset + 2 * i] + originX;
+            dstPoints[dstOffset + 2 * i + 1] = srcPoints[srcOffset + 2 * i + 1] + originY;
+        }
+        inverseTransform(dstPoints, dstOffset, dstPoints, dstOffset, numPoints);
+    }
+
     /**
      * Finds the smallest lat/long rectangle wholly inside the given view rectangle.
      * This is only a rough estimate.
@@ -382,23 +732,20 @@ public abstract class Projection implements Cloneable, Serializable {
     }
 
     /**
-     * Compute the inverse projection by a binary search.
-     * Use this method carefully! It is slow and only an approximation for
-     * projections that do not provide their own projectInverse method.
-     * Added by Bernhard Jenny, 18 May 2010.
+     * Compute the inverse projection with newtonInverse. The method was added
+     * by Bernhard Jenny, 18 May 2010, as a binary search, and keeps its name.
      * @param x The projected x coordinate relative to the unary sphere.
      * @param y The projected y coordinate relative to the unary sphere.
      * @param lp A point that will receive the result.
      */
     protected void binarySearchInverse(double x, double y, Point2D lp) {
-        binarySearchInverse(x, y, 0, 0, lp);
+        newtonInverse(x, y, lp);
     }
 
     /**
-     * Compute the inverse projection by a binary search.
-     * Use this method carfully! It is slow and only an approximation for
-     * projections that do not provide their own projectInverse method.
-     * Added by Bernhard Jenny, 18 May 2010.
+     * Compute the inverse projection with Newton's method, starting at
+     * lon/lat and falling back to newtonInverse. The method was added by
+     * Bernhard Jenny, 18 May 2010, as a binary search, and keeps its name.
      * @param x The projected x coordinate relative to the unary sphere.
      * @param y The projected y coordinate relative to the unary sphere.
      * @param lon An approximation of the longitude in radians.
@@ -407,37 +754,226 @@ public abstract class Projection implements Cloneable, Serializable {
      */
     protected void binarySearchInverse(double x, double y,
             double lon, double lat, Point2D lp) {
+        double[] d = new double[4];
+        if (!newton(x, y, lon, lat, lp, d)) {
+            newtonInverse(x, y, lp);
+        }
+    }
+
+    /**
+     * Compute the inverse projection with Newton's method, for projections
+     * that do not have a closed form inverse. The iteration starts at the
+     * nearest point of a coarse grid of projected points, which is built on
+     * first use. If it does not converge, lp is set to NaN.
+     * @param x The projected x coordinate relative to the unary sphere.
+     * @param y The projected y coordinate relative to the unary sphere.
+     * @param lp A point that will receive the result in radians.
+     * @return True if the iteration converged.
+     */
+    protected boolean newtonInverse(double x, double y, Point2D lp) {
+        InverseGrid inverse = getInverseGrid();
+        double[] grid = inverse.points;
+        int nearest = inverse.nearest(x, y);
+        if (nearest < 0) {
+            lp.x = lp.y = Double.NaN;
+            return false;
+        }
+        return newton(x, y, grid[nearest + 2], grid[nearest + 3], lp, new double[4]);
+    }
 
-        // tolerance for approximating longitude and latitude
-        final double TOL = 1e-9; // less than a hundreth of a second
-
-        // maximum number of loops
-        final int MAX_LOOP = 1000;
-
-        int counter = 0;
-        double dx, dy;
-        do {
-            // forward projection
-            this.project(lon, lat, lp);
-            dx = x - lp.x; // horizontal difference in projected coordinates
-            dy = y - lp.y; // vertical difference in projected coordinates
-            lon += dx * 0.5; // add half of the horizontal difference to the longitude
-            lat += dy * 0.5; // add half of the vertical difference to the latitude
-
-            // stop if it is not converging
-            if (counter++ == MAX_LOOP) {
-                lon = Double.NaN;
-                lat = Double.NaN;
-                break;
+    /**
+     * Compute the inverse projection with Newton's method, starting at lon/lat.
+     * If it does not converge, lp is set to NaN.
+     * @param x The projected x coordinate relative to the unary sphere.
+     * @param y The projected y coordinate relative to the unary sphere.
+     * @param lon The start longitude in radians.
+     * @param lat The start latitude in radians.
+     * @param lp A point that will receive the result in radians.
+     * @return True if the iteration converged.
+     */
+    protected boolean newtonInverse(double x, double y, double lon, double lat, Point2D lp) {
+        return newton(x, y, lon, lat, lp, new double[4]);
+    }
+
+    private boolean newton(double x, double y, double lon, double lat, Point2D lp, double[] d) {
+        try {
+            for (int i = 0; i < NEWTON_MAX_ITERATIONS; i++) {
+                project(lon, lat, lp);
+                double dx = x - lp.x;
+                double dy = y - lp.y;
+                if (Math.abs(dx) < NEWTON_TOLERANCE && Math.abs(dy) < NEWTON_TOLERANCE) {
+                    lp.x = lon;
+                    lp.y = lat;
+                    return true;
+                }
+                partialDerivatives(lon, lat, lp.x, lp.y, d);
+                double det = d[0] * d[3] - d[1] * d[2];
+                if (!(Math.abs(det) > 0)) {
+                    break;
+                }
+                lon += (d[3] * dx - d[1] * dy) / det;
+                lat += (d[0] * dy - d[2] * dx) / det;
+                if (lat > MapMath.HALFPI) {
+                    lat = MapMath.HALFPI;
+                } else if (lat < -MapMath.HALFPI) {
+                    lat = -MapMath.HALFPI;
+                }
+                if (!(Math.abs(lon) < 2 * Math.PI)) {
+                    break;
+                }
             }
+        } catch (ProjectionException e) {
+            // A step left the domain of the projection. This is not an error
+            // of x/y, which may still converge from another start point: a
+            // start hint falls back to the inverse grid when this fails.
+        }
+        lp.x = lp.y = Double.NaN;
+        return false;
+    }
 
-            // stop when difference is small enough
-        } while (dx > TOL || dx < -TOL || dy > TOL || dy < -TOL);
+    /**
+     * Project a point and compute the partial derivatives of the projection
+     * at the point, relative to the unary sphere.
+     * @param lam Longitude in radians, relative to the projection centre.
+     * @param phi Latitude in radians.
+     * @param xy The projected point.
+     * @param derivatives Receives dx/dlam, dx/dphi, dy/dlam and dy/dphi.
+     * @return The projected point, identical to parameter xy.
+     */
+    public Point2D projectDerivatives(double lam, double phi, Point2D xy, double[] derivatives) {
+        project(lam, phi, xy);
+        partialDerivatives(lam, phi, xy.x, xy.y, derivatives);
+        return xy;
+    }
 
-        lp.x = lon;
-        lp.y = lat;
+    /**
+     * Compute the partial derivatives of project at a point. This
+     * implementation uses finite differences; projections should override it
+     * with analytic derivatives.
+     * @param lam Longitude in radians.
+     * @param phi Latitude in radians.
+     * @param x The projected x of lam/phi.
+     * @param y The projected y of lam/phi.
+     * @param d Receives dx/dlam, dx/dphi, dy/dlam and dy/dphi.
+     */
+    protected void partialDerivatives(double lam, double phi, double x, double y, double[] d) {
+        Point2D p = new Point2D();
+        // step away from the pole and from the edge of the graticule
+        double hLam = lam > 0 ? -DERIVATIVE_STEP : DERIVATIVE_STEP;
+        double hPhi = phi > 0 ? -DERIVATIVE_STEP : DERIVATIVE_STEP;
+        project(lam + hLam, phi, p);
+        d[0] = (p.x - x) / hLam;
+        d[2] = (p.y - y) / hLam;
+        project(lam, phi + hPhi, p);
+        d[1] = (p.x - x) / hPhi;
+        d[3] = (p.y - y) / hPhi;
     }
-    
+
+    /**
+     * Compute the partial derivatives of a conformal projection from the
+     * derivatives by longitude, with the Cauchy-Riemann equations.
+     * @param phi Latitude in radians.
+     * @param d Holds dx/dlam in d[0] and dy/dlam in d[2], and receives
+     * dx/dphi in d[1] and dy/dphi in d[3].
+     */
+    protected void conformalDerivatives(double phi, double[] d) {
+        double sinphi = Math.sin(phi);
+        // derivative of the isometric latitude, the ratio of the meridian
+        // radius of curvature to the radius of the parallel
+        double psi = one_es / ((1 - es * sinphi * sinphi) * Math.cos(phi));
+        d[1] = -psi * d[2];
+        d[3] = psi * d[0];
+    }
+
+    /**
+     * Compute the distortion of a number of lat/long points (in degrees).
+     * Each result array may be null if that value is not needed.
+     * @param h Receives the scale factor along the meridian.
+     * @param k Receives the scale factor along the parallel.
+     * @param omega Receives the maximum angular distortion in degrees.
+     * @param convergence Receives the meridian convergence in degrees, the
+     * angle from true north to grid north, positive clockwise.
+     */
+    public void distortion(double[] srcPoints, int srcOffset, double[] h, double[] k,
+            double[] omega, double[] convergence, int dstOffset, int numPoints) {
+        Point2D xy = new Point2D();
+        double[] d = new double[4];
+        for (int i = 0; i < numPoints; i++) {
+            double lam = srcPoints[srcOffset++] * DTR;
+            double phi = srcPoints[srcOffset++] * DTR;
+            if (projectionLongitude != 0) {
+                lam = MapMath.normalizeLongitude(lam - projectionLongitude);
+            }
+            projectDerivatives(lam, phi, xy, d);
+            double sinphi = Math.sin(phi);
+            double t = 1 - es * sinphi * sinphi;
+            // meridian radius of curvature and radius of the parallel
+            double m = one_es / (t * Math.sqrt(t));
+            double n = Math.cos(phi) / Math.sqrt(t);
+            double hi = Math.sqrt(d[1] * d[1] + d[3] * d[3]) / m;
+            double ki = Math.sqrt(d[0] * d[0] + d[2] * d[2]) / n;
+            int j = dstOffset + i;
+            if (h != null) {
+                h[j] = hi;
+            }
+            if (k != null) {
+                k[j] = ki;
+            }
+            if (omega != null) {
+                // semi-axes of the Tissot indicatrix from the areal scale
+                double s = (d[3] * d[0] - d[1] * d[2]) / (m * n);
+                double q = hi * hi + ki * ki;
+                double ap = Math.sqrt(Math.max(0, q + 2 * s));
+                double bp = Math.sqrt(Math.max(0, q - 2 * s));
+                double a = 0.5 * (ap + bp);
+                double b = 0.5 * Math.abs(ap - bp);
+                omega[j] = 2 * Math.asin((a - b) / (a + b)) * RTD;
+            }
+            if (convergence != null) {
+                convergence[j] = -Math.atan2(d[1], d[3]) * RTD;
+            }
+        }
+    }
+
+    /**
+     * Returns the coarse grid of start points for newtonInverse.
+     */
+    private InverseGrid getInverseGrid() {
+        InverseGrid inverse = inverseGrid;
+        if (inverse == null) {
+            int nLon = (int) Math.ceil((maxLongitude - minLongitude) / INVERSE_GRID_STEP);
+            int nLat = (int) Math.ceil((maxLatitude - minLatitude) / INVERSE_GRID_STEP);
+            double[] grid = new double[4 * (nLon + 1) * (nLat + 1)];
+            int n = 0;
+            Point2D p = new Point2D();
+            for (int i = 0; i <= nLon; i++) {
+                double lon = minLongitude + (maxLongitude - minLongitude) * i / nLon;
+                for (int j = 0; j <= nLat; j++) {
+                    double lat = minLatitude + (maxLatitude - minLatitude) * j / nLat;
+                    // keep away from the poles, where many projections are undefined
+                    lat = Math.max(-MapMath.HALFPI + INVERSE_GRID_STEP / 10, Math.min(MapMath.HALFPI - INVERSE_GRID_STEP / 10, lat));
+                    try {
+                        project(lon, lat, p);
+                    } catch (ProjectionException e) {
+                        continue;
+                    }
+                    if (Double.isNaN(p.x) || Double.isNaN(p.y) || Double.isInfinite(p.x) || Double.isInfinite(p.y)) {
+                        continue;
+                    }
+                    grid[n++] = p.x;
+                    grid[n++] = p.y;
+                    grid[n++] = lon;
+                    grid[n++] = lat;
+                }
+            }
+            double[] trimmed = new double[n];
+            System.arraycopy(grid, 0, trimmed, 0, n);
+            inverse = new InverseGrid(trimmed);
+            inverseGrid = inverse;
+        }
+        return inverse;
+    }
+
     /**
      * Transform a bounding box. This is only a rough estimate.
      */
@@ -592,6 +1128,20 @@ public abstract class Projection implements Cloneable, Serializable {
         if (fromMetres != 1) {
             sb.append(" +fr_meters=" + fromMetres);
         }
+        if (datum != null && datum.getGrids() != null) {
+            GridShiftFile[] grids = datum.getGrids();
+            sb.append(" +nadgrids=");
+            for (int i = 0; i < grids.length; i++) {
+                String name = grids[i].getName();
+                sb.append((i > 0 ? "," : "") + (name.equals("null") ? "@null" : name));
+            }
+        } else if (datum != null && !datum.isIdentity()) {
+            double[] p = datum.getToWGS84();
+            sb.append(" +towgs84=" + p[0] + "," + p[1] + "," + p[2]);
+            if (!datum.isThreeParameter()) {
+                sb.append("," + p[3] + "," + p[4] + "," + p[5] + "," + p[6]);
+            }
+        }
         return sb.toString();
     }
 
@@ -786,6 +1336,21 @@ public abstract class Projection implements Cloneable, Serializable {
         return ellipsoid;
     }
 
+    /**
+     * Set the datum. The datum is not used by the projection itself, but by
+     * datum transformations between projections.
+     */
+    public void setDatum(Datum datum) {
+        this.datum = datum;
+    }
+
+    /**
+     * Returns the datum, or null if it is unknown.
+     */
+    public Datum getDatum() {
+        return datum;
+    }
+
     /**
      * Returns the ESPG code for this projection, or 0 if unknown.
      */
@@ -798,6 +1363,7 @@ public abstract class Projection implements Cloneable, Serializable {
      * This is for performance reasons as initialization may be expensive.
      */
     public void initialize() {
+        inverseGrid = null;
         spherical = e == 0.0;
         one_es = 1 - es;
         rone_es = 1.0 / one_es;
@@ -32,6 +32,9 @@ package com.jhlabs.map.proj;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import com.jhlabs.map.*;
 import com.jhlabs.geom.*;
 import java.util.logging.Level;
@@ -50,16 +53,234 @@ public class ProjectionFactory {
     private final static double RV6 = .04243827160493827160; /* 55/1296 */
 
     private static AngleFormat format = new AngleFormat(AngleFormat.ddmmssPattern, true);
+    private static volatile int cacheSize = 256;
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder cacheEvictions = new LongAdder();
+    /**
+     * Initialized projections by argument list, both as passed and in
+     * canonical form. Lookups take no lock; when the cache grows past its
+     * size, the entries used least recently are removed under evictionLock.
+     */
+    private static final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+    private static final Object evictionLock = new Object();
+
+    /**
+     * A cached projection and the time it was last returned. The time is
+     * written without synchronization, so the eviction order is only
+     * approximately least recently used.
+     */
+    private static class CacheEntry {
+        final Projection projection;
+        volatile long lastUsed = System.nanoTime();
+
+        CacheEntry(Projection projection) {
+            this.projection = projection;
+        }
+    }
 
     /**
-     * Return a projection initialized with a PROJ.4 argument list.
+     * The parameters read with Double.parseDouble, whose values may be
+     * written in any number format without changing the projection.
+     */
+    private final static Set<String> doubleParameters = new HashSet<String>(Arrays.asList(new String[] {
+        "R", "a", "b", "es", "rf", "f", "x_0", "y_0", "k", "k_0", "to_meter", "towgs84"
+    }));
+
+    /**
+     * The parameters read with parseAngle, whose values may be written in
+     * degrees, minutes and seconds or in decimal degrees.
+     */
+    private final static Set<String> angleParameters = new HashSet<String>(Arrays.asList(new String[] {
+        "lat_0", "lon_0", "lat_ts", "R_lat_a", "R_lat_g"
+    }));
+
+    /**
+     * Return a projection initialized with a PROJ.4 argument list. Projections
+     * are cached by their arguments, regardless of order and number format,
+     * and each call returns a new clone of the cached projection, which the
+     * caller may change. Returns null if the arguments have neither +proj
+     * nor +init.
      */
     public static Projection fromPROJ4Specification(String[] args) {
-        Projection projection = null;
-        Ellipsoid ellipsoid = null;
-        double a = 0, b = 0, es = 0;
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < args.length; i++) {
+            sb.append(' ').append(args[i]);
+        }
+        String key = sb.toString();
+        Projection projection = getCached(key);
+        if (projection != null) {
+            return projection;
+        }
+        String canonicalKey = getCanonicalKey(args);
+        CacheEntry entry = cache.get(canonicalKey);
+        if (entry != null) {
+            cacheHits.increment();
+            entry.lastUsed = System.nanoTime();
+            putCached(key, entry);
+            return (Projection) entry.projection.clone();
+        }
+        projection = createFromPROJ4Specification(args);
+        if (projection == null) {
+            return null;
+        }
+        cacheMisses.increment();
+        entry = new CacheEntry(projection);
+        putCached(canonicalKey, entry);
+        putCached(key, entry);
+        return (Projection) projection.clone();
+    }
 
-        Hashtable params = new Hashtable();
+    /**
+     * Returns the arguments sorted by name, with the values of double and
+     * angle parameters in a standard format. Other values are kept as they are, so
+     * that a value which does not parse never shares a key with one that does.
+     */
+    private static String getCanonicalKey(String[] args) {
+        TreeMap<String, String> params = new TreeMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("+")) {
+                int index = arg.indexOf('=');
+                if (index == -1) {
+                    params.put(arg.substring(1), "");
+                } else {
+                    String name = arg.substring(1, index);
+                    if (angleParameters.contains(name)) {
+                        String value = arg.substring(index + 1);
+                        try {
+                            value = Double.toString(parseAngle(value));
+                        } catch (RuntimeException e) {
+                            // keep the text, so the value still fails when parsed
+                        }
+                        params.put(name, "=" + value);
+                        continue;
+                    }
+                    if (!doubleParameters.contains(name)) {
+                        params.put(name, arg.substring(index));
+                        continue;
+                    }
+                    String[] values = arg.substring(index + 1).split(",", -1);
+                    StringBuffer value = new StringBuffer("=");
+                    for (int j = 0; j < values.length; j++) {
+                        if (j > 0) {
+                            value.append(',');
+                        }
+                        try {
+                            value.append(Double.toString(Double.parseDouble(values[j])));
+                        } catch (NumberFormatException e) {
+                            value.append(values[j]);
+                        }
+                    }
+                    params.put(name, value.toString());
+                }
+            }
+        }
+        StringBuffer sb = new StringBuffer();
+        for (Iterator<Map.Entry<String, String>> it = params.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, String> e = it.next();
+            sb.append(" +").append(e.getKey()).append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a clone of the projection cached under the key, or null.
+     */
+    private static Projection getCached(String key) {
+        CacheEntry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        cacheHits.increment();
+        entry.lastUsed = System.nanoTime();
+        return (Projection) entry.projection.clone();
+    }
+
+    private static void putCached(String key, CacheEntry entry) {
+        if (cacheSize <= 0) {
+            return;
+        }
+        cache.put(key, entry);
+        if (cache.size() > cacheSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is within its
+     * size. Entries used while the cache is scanned may be removed too.
+     */
+    private static void evict() {
+        synchronized (evictionLock) {
+            int excess = cache.size() - cacheSize;
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<String, CacheEntry>> entries = new ArrayList<Map.Entry<String, CacheEntry>>(cache.entrySet());
+            long[] times = new long[entries.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = entries.get(i).getValue().lastUsed;
+            }
+            Arrays.sort(times);
+            long limit = times[Math.min(excess, times.length) - 1];
+            for (int i = 0; i < entries.size() && excess > 0; i++) {
+                Map.Entry<String, CacheEntry> e = entries.get(i);
+                if (e.getValue().lastUsed <= limit && cache.remove(e.getKey(), e.getValue())) {
+                    cacheEvictions.increment();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of cached argument lists. Zero disables the cache.
+     */
+    public static void setCacheSize(int size) {
+        cacheSize = size;
+        if (size <= 0) {
+            cacheEvictions.add(cache.size());
+            cache.clear();
+        } else {
+            evict();
+        }
+    }
+
+    public static int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Remove all cached projections. The statistics are not reset.
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of projections answered from the cache.
+     */
+    public static long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Returns the number of projections created because they were not in the cache.
+     */
+    public static long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Returns the number of entries removed from the cache to keep it within its size.
+     */
+    public static long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    private static Projection createFromPROJ4Specification(String[] args) {
+        Map<String, Object> params = new HashMap<String, Object>();
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
             if (arg.startsWith("+")) {
@@ -71,9 +292,21 @@ public class ProjectionFactory {
                 }
             }
         }
+        return createFromParameters(params);
+    }
+
+    /**
+     * Return a projection initialized with PROJ.4 parameters by name. The
+     * values are strings as written, or Numbers that need not be parsed.
+     */
+    static Projection createFromParameters(Map<String, Object> params) {
+        Projection projection = null;
+        Ellipsoid ellipsoid = null;
+        double a = 0, b = 0, es = 0;
 
         String s;
-        s = (String) params.get("proj");
+        Object v;
+        s = getString(params, "proj");
         if (s != null) {
             projection = getNamedPROJ4Projection(s);
             if (projection == null) {
@@ -81,7 +314,7 @@ public class ProjectionFactory {
             }
         }
 
-        s = (String) params.get("init");
+        s = getString(params, "init");
         if (s != null) {
             projection = getNamedPROJ4CoordinateSystem(s);
             if (projection == null) {
@@ -90,18 +323,33 @@ public class ProjectionFactory {
             a = projection.getEquatorRadius();
             es = projection.getEllipsoid().getEccentricitySquared();
         }
+        if (projection == null) {
+            return null;
+        }
+
+        // Set the datum; a datum name that is not known is used as an ellipsoid name
+        Datum datum = null;
+        s = getString(params, "datum");
+        if (s != null) {
+            datum = Datum.findDatum(s);
+        }
 
         // Set the ellipsoid
         String ellipsoidName = "";
-        s = (String) params.get("R");
-        if (s != null) {
-            a = Double.parseDouble(s);
+        v = params.get("R");
+        if (v != null) {
+            a = getDouble(v);
         } else {
-            s = (String) params.get("ellps");
-            if (s == null) {
-                s = (String) params.get("datum");
+            s = getString(params, "ellps");
+            if (s == null && datum == null) {
+                s = getString(params, "datum");
             }
-            if (s != null) {
+            if (s == null && datum != null) {
+                ellipsoid = datum.getEllipsoid();
+                es = ellipsoid.eccentricity2;
+                a = ellipsoid.equatorRadius;
+                ellipsoidName = ellipsoid.shortName;
+            } else if (s != null) {
                 Ellipsoid[] ellipsoids = Ellipsoid.ellipsoids;
                 for (int i = 0; i < ellipsoids.length; i++) {
                     if (ellipsoids[i].shortName.equals(s)) {
@@ -116,28 +364,28 @@ public class ProjectionFactory {
                 a = ellipsoid.equatorRadius;
                 ellipsoidName = s;
             } else {
-                s = (String) params.get("a");
-                if (s != null) {
-                    a = Double.parseDouble(s);
+                v = params.get("a");
+                if (v != null) {
+                    a = getDouble(v);
                 }
-                s = (String) params.get("es");
-                if (s != null) {
-                    es = Double.parseDouble(s);
+                v = params.get("es");
+                if (v != null) {
+                    es = getDouble(v);
                 } else {
-                    s = (String) params.get("rf");
-                    if (s != null) {
-                        es = Double.parseDouble(s);
+                    v = params.get("rf");
+                    if (v != null) {
+                        es = getDouble(v);
                         es = es * (2. - es);
                     } else {
-                        s = (String) params.get("f");
-                        if (s != null) {
-                            es = Double.parseDouble(s);
+                        v = params.get("f");
+                        if (v != null) {
+                            es = getDouble(v);
                             es = 1.0 / es;
                             es = es * (2. - es);
                         } else {
-                            s = (String) params.get("b");
-                            if (s != null) {
-                                b = Double.parseDouble(s);
+                            v = params.get("b");
+                            if (v != null) {
+                                b = getDouble(v);
                                 es = 1. - (b * b) / (a * a);
                             }
                         }
@@ -148,30 +396,30 @@ public class ProjectionFactory {
                 }
             }
 
-            s = (String) params.get("R_A");
+            s = getString(params, "R_A");
             if (s != null && Boolean.getBoolean(s)) {
                 a *= 1. - es * (SIXTH + es * (RA4 + es * RA6));
             } else {
-                s = (String) params.get("R_V");
+                s = getString(params, "R_V");
                 if (s != null && Boolean.getBoolean(s)) {
                     a *= 1. - es * (SIXTH + es * (RV4 + es * RV6));
                 } else {
-                    s = (String) params.get("R_a");
+                    s = getString(params, "R_a");
                     if (s != null && Boolean.getBoolean(s)) {
                         a = .5 * (a + b);
                     } else {
-                        s = (String) params.get("R_g");
+                        s = getString(params, "R_g");
                         if (s != null && Boolean.getBoolean(s)) {
                             a = Math.sqrt(a * b);
                         } else {
-                            s = (String) params.get("R_h");
+                            s = getString(params, "R_h");
                             if (s != null && Boolean.getBoolean(s)) {
                                 a = 2. * a * b / (a + b);
                                 es = 0.;
                             } else {
-                                s = (String) params.get("R_lat_a");
-                                if (s != null) {
-                                    double tmp = Math.sin(parseAngle(s));
+                                v = params.get("R_lat_a");
+                                if (v != null) {
+                                    double tmp = Math.sin(getAngle(v));
                                     if (Math.abs(tmp) > MapMath.HALFPI) {
                                         throw new ProjectionException("-11");
                                     }
@@ -179,9 +427,9 @@ public class ProjectionFactory {
                                     a *= .5 * (1. - es + tmp) / (tmp * Math.sqrt(tmp));
                                     es = 0.;
                                 } else {
-                                    s = (String) params.get("R_lat_g");
-                                    if (s != null) {
-                                        double tmp = Math.sin(parseAngle(s));
+                                    v = params.get("R_lat_g");
+                                    if (v != null) {
+                                        double tmp = Math.sin(getAngle(v));
                                         if (Math.abs(tmp) > MapMath.HALFPI) {
                                             throw new ProjectionException("-11");
                                         }
@@ -202,56 +450,94 @@ public class ProjectionFactory {
 //		projection.setProjectionLatitudeDegrees( 0 );
 //		projection.setProjectionLatitude1Degrees( 0 );
 //		projection.setProjectionLatitude2Degrees( 0 );
-        s = (String) params.get("lat_0");
-        if (s != null) {
-            projection.setProjectionLatitudeDegrees(parseAngle(s));
+        v = params.get("lat_0");
+        if (v != null) {
+            projection.setProjectionLatitudeDegrees(getAngle(v));
         }
-        s = (String) params.get("lon_0");
-        if (s != null) {
-            projection.setProjectionLongitudeDegrees(parseAngle(s));
+        v = params.get("lon_0");
+        if (v != null) {
+            projection.setProjectionLongitudeDegrees(getAngle(v));
         }
-        s = (String) params.get("lat_ts");
-        if (s != null) {
-            projection.setTrueScaleLatitudeDegrees(parseAngle(s));
+        v = params.get("lat_ts");
+        if (v != null) {
+            projection.setTrueScaleLatitudeDegrees(getAngle(v));
         }
-        s = (String) params.get("x_0");
-        if (s != null) {
-            projection.setFalseEasting(Double.parseDouble(s));
+        v = params.get("x_0");
+        if (v != null) {
+            projection.setFalseEasting(getDouble(v));
         }
-        s = (String) params.get("y_0");
-        if (s != null) {
-            projection.setFalseNorthing(Double.parseDouble(s));
+        v = params.get("y_0");
+        if (v != null) {
+            projection.setFalseNorthing(getDouble(v));
         }
 
-        s = (String) params.get("k_0");
-        if (s == null) {
-            s = (String) params.get("k");
+        v = params.get("k_0");
+        if (v == null) {
+            v = params.get("k");
         }
-        if (s != null) {
-            projection.setScaleFactor(Double.parseDouble(s));
+        if (v != null) {
+            projection.setScaleFactor(getDouble(v));
         }
 
-        s = (String) params.get("units");
+        s = getString(params, "units");
         if (s != null) {
             Unit unit = Units.findUnits(s);
             if (unit != null) {
                 projection.setFromMetres(1.0 / unit.value);
             }
         }
-        s = (String) params.get("to_meter");
-        if (s != null) {
-            projection.setFromMetres(1.0 / Double.parseDouble(s));
+        v = params.get("to_meter");
+        if (v != null) {
+            projection.setFromMetres(1.0 / getDouble(v));
         }
 
         if (projection instanceof TransverseMercatorProjection) {
-            s = (String) params.get("zone");
-            if (s != null) {
-                ((TransverseMercatorProjection) projection).setUTMZone(Integer.parseInt(s));
+            v = params.get("zone");
+            if (v != null) {
+                ((TransverseMercatorProjection) projection).setUTMZone(getInt(v));
             }
         }
 
+        s = getString(params, "towgs84");
+        if (s != null) {
+            String[] values = s.split(",");
+            double[] toWGS84 = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                toWGS84[i] = Double.parseDouble(values[i]);
+            }
+            try {
+                datum = new Datum("towgs84", projection.getEllipsoid(), toWGS84);
+            } catch (IllegalArgumentException e) {
+                throw new ProjectionException(e.getMessage());
+            }
+        }
+        s = getString(params, "nadgrids");
+        if (s != null) {
+            String[] names = s.split(",");
+            List<GridShiftFile> grids = new ArrayList<GridShiftFile>();
+            for (int i = 0; i < names.length; i++) {
+                // grids prefixed with @ are optional
+                boolean optional = names[i].startsWith("@");
+                String name = optional ? names[i].substring(1) : names[i];
+                try {
+                    grids.add(GridShiftFile.open(name));
+                } catch (IOException e) {
+                    if (!optional) {
+                        throw new ProjectionException("Cannot read grid " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+            if (grids.size() > 0) {
+                GridShiftFile[] array = grids.toArray(new GridShiftFile[grids.size()]);
+                datum = new Datum("nadgrids", projection.getEllipsoid(), array);
+            }
+        }
+        // keep a datum inherited through +init unless one is given here
+        if (params.get("datum") != null || params.get("towgs84") != null || params.get("nadgrids") != null) {
+            projection.setDatum(datum);
+        }
+
 //zone
-//towgs84
 //alpha
 //datum
 //lat_ts
@@ -265,157 +551,250 @@ public class ProjectionFactory {
         return projection;
     }
 
-    private static double parseAngle(String s) {
-        return format.parse(s, null).doubleValue();
+    /**
+     * Returns a parameter as written, or null if it is not given.
+     */
+    private static String getString(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        return value == null ? null : value.toString();
     }
-    private static Hashtable registry;
-    private static Hashtable nameMap;
 
-    private static void register(String proj4Name, Class cls) throws InstantiationException, IllegalAccessException {
-        try {
-            registry.put(proj4Name, cls);
-            Projection projection = (Projection) cls.newInstance();
-            String readableName = projection.getName();
-            nameMap.put(readableName, proj4Name);
-        } catch (InstantiationException e) {
-            System.err.println("unable to register " + proj4Name);
-            throw e;
+    private static double getDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
         }
+        return Double.parseDouble((String) value);
     }
 
-    public static Projection getNamedProjection(String name) {
-        if (registry == null) {
-            initialize();
+    private static double getAngle(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
         }
-        String proj4Name = (String) nameMap.get(name);
-        return getNamedPROJ4Projection(proj4Name);
+        return parseAngle((String) value);
     }
 
-    public static Projection getNamedPROJ4Projection(String name) {
-        if (registry == null) {
-            initialize();
+    private static int getInt(Object value) {
+        if (value instanceof Integer) {
+            return ((Integer) value).intValue();
         }
-        Class cls = (Class) registry.get(name);
-        if (cls != null) {
+        return Integer.parseInt(value.toString());
+    }
+
+    private static double parseAngle(String s) {
+        synchronized (format) {
+            return format.parse(s, null).doubleValue();
+        }
+    }
+    /**
+     * The projections by PROJ.4 name and the PROJ.4 names by readable name,
+     * created when first used. The maps are never changed after they are
+     * published, so lookups need no locking.
+     */
+    private static class Registry {
+
+        static final Map<String, Supplier<Projection>> projections;
+        static final Map<String, String> names;
+
+        static {
+            Map<String, Supplier<Projection>> map = new LinkedHashMap<String, Supplier<Projection>>();
+            map.put("etmerc", ExtendedTransverseMercatorProjection::new);
+            map.put("latlong", NullProjection::new);
+            map.put("longlat", NullProjection::new);
+            map.put("merc", MercatorProjection::new);
+            map.put("omerc", ObliqueMercatorProjection::new);
+            map.put("tmerc", TransverseMercatorProjection::new);
+            map.put("utm", TransverseMercatorProjection::new);
             try {
-                Projection projection = (Projection) cls.newInstance();
-                if (projection != null) {
-                    projection.setName(name); // is this needed ? FIXME
+                for (ProjectionProvider provider : ServiceLoader.load(ProjectionProvider.class, ProjectionFactory.class.getClassLoader())) {
+                    for (Map.Entry<String, Supplier<Projection>> e : provider.getProjections().entrySet()) {
+                        if (!map.containsKey(e.getKey())) {
+                            map.put(e.getKey(), e.getValue());
+                        }
+                    }
                 }
-                return projection;
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
+            } catch (ServiceConfigurationError ex) {
+                Logger.getLogger(ProjectionFactory.class.getName()).log(Level.SEVERE, null, ex);
             }
+            Map<String, String> nameMap = new HashMap<String, String>();
+            for (Map.Entry<String, Supplier<Projection>> e : map.entrySet()) {
+                nameMap.put(e.getValue().get().getName(), e.getKey());
+            }
+            projections = Collections.unmodifiableMap(map);
+            names = Collections.unmodifiableMap(nameMap);
         }
-        return null;
     }
 
-    public static Object[] getOrderedProjectionNames() {
-        if (registry == null) {
-            initialize();
+    public static Projection getNamedProjection(String name) {
+        String proj4Name = Registry.names.get(name);
+        return proj4Name == null ? null : getNamedPROJ4Projection(proj4Name);
+    }
+
+    public static Projection getNamedPROJ4Projection(String name) {
+        Supplier<Projection> supplier = Registry.projections.get(name);
+        if (supplier == null) {
+            return null;
         }
-        Object[] names = nameMap.keySet().toArray();
+        Projection projection = supplier.get();
+        projection.setName(name); // is this needed ? FIXME
+        return projection;
+    }
+
+    public static Object[] getOrderedProjectionNames() {
+        Object[] names = Registry.names.keySet().toArray();
         Arrays.sort(names);
         return names;
     }
 
-    private static void initialize() {
-        try {
-            registry = new Hashtable();
-            nameMap = new Hashtable();
-
-            register("latlong", NullProjection.class);
-            register("longlat", NullProjection.class);
-            register("merc", MercatorProjection.class);
-            register("omerc", ObliqueMercatorProjection.class);
-            register("tmerc", TransverseMercatorProjection.class);
-            register("utm", TransverseMercatorProjection.class);
-        } catch (InstantiationException ex) {
-            Logger.getLogger(ProjectionFactory.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IllegalAccessException ex) {
-            Logger.getLogger(ProjectionFactory.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * Index of the coordinate system files read so far, mapping the file
+     * name to a map from coordinate system name to argument list. The maps
+     * are not changed after they are read, so lookups need no locking.
+     */
+    private static final ConcurrentHashMap<String, Map<String, String[]>> catalogues = new ConcurrentHashMap<String, Map<String, String[]>>();
+
+    public static Projection readProjectionFile(String file, String name) throws IOException {
+        CoordinateSystemCatalogue compiled = CoordinateSystemCatalogue.getDefault();
+        if (compiled != null && compiled.hasFile(file)) {
+            return readCompiledProjection(compiled, file, name);
         }
+        String[] args = getCatalogue(file).get(name);
+        if (args == null) {
+            return null;
+        }
+        return fromPROJ4Specification(args);
     }
 
-    public static Projection readProjectionFile(String file, String name) throws IOException {
+    /**
+     * Return a projection from the compiled catalogue, initialized with its
+     * typed parameters. It is cached by file and name; argument list keys
+     * start with a space, so they cannot be the same.
+     */
+    private static Projection readCompiledProjection(CoordinateSystemCatalogue compiled, String file, String name) {
+        String key = file + ":" + name;
+        Projection projection = getCached(key);
+        if (projection != null) {
+            return projection;
+        }
+        Map<String, Object> params = compiled.getParameters(file, name);
+        if (params == null) {
+            return null;
+        }
+        projection = createFromParameters(params);
+        if (projection == null) {
+            return null;
+        }
+        cacheMisses.increment();
+        putCached(key, new CacheEntry(projection));
+        return (Projection) projection.clone();
+    }
+
+    /**
+     * Returns the index of a coordinate system file, reading the whole file the
+     * first time it is asked for.
+     */
+    private static Map<String, String[]> getCatalogue(String file) throws IOException {
+        try {
+            return catalogues.computeIfAbsent(file, f -> {
+                try {
+                    return readCatalogue(f);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        BufferedReader reader = null;
+    private static Map<String, String[]> readCatalogue(String file) throws IOException {
+        Reader reader = null;
         try {
             String filePath = "/coordsys/" + file;
             InputStream is = ProjectionFactory.class.getResourceAsStream(filePath);
+            if (is == null) {
+                throw new FileNotFoundException("Coordinate system file not found: " + file);
+            }
             reader = new BufferedReader(new InputStreamReader(is));
-            StreamTokenizer t = new StreamTokenizer(reader);
-            t.commentChar('#');
-            t.ordinaryChars('0', '9');
-            t.ordinaryChars('.', '.');
-            t.ordinaryChars('-', '-');
-            t.ordinaryChars('+', '+');
-            t.wordChars('0', '9');
-            t.wordChars('\'', '\'');
-            t.wordChars('"', '"');
-            t.wordChars('_', '_');
-            t.wordChars('.', '.');
-            t.wordChars('-', '-');
-            t.wordChars('+', '+');
-            t.wordChars(',', ',');
+            return readCatalogue(reader);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Read a coordinate system file into a map from coordinate system
+     * name to argument list.
+     */
+    static Map<String, String[]> readCatalogue(Reader reader) throws IOException {
+        Map<String, String[]> catalogue = new HashMap<String, String[]>();
+        StreamTokenizer t = new StreamTokenizer(reader);
+        t.commentChar('#');
+        t.ordinaryChars('0', '9');
+        t.ordinaryChars('.', '.');
+        t.ordinaryChars('-', '-');
+        t.ordinaryChars('+', '+');
+        t.wordChars('0', '9');
+        t.wordChars('\'', '\'');
+        t.wordChars('"', '"');
+        t.wordChars('_', '_');
+        t.wordChars('.', '.');
+        t.wordChars('-', '-');
+        t.wordChars('+', '+');
+        t.wordChars(',', ',');
+        t.wordChars('@', '@');
+        t.nextToken();
+
+        while (t.ttype == '<') {
             t.nextToken();
+            if (t.ttype != StreamTokenizer.TT_WORD) {
+                throw new IOException(t.lineno() + ": Word expected after '<'");
+            }
 
-            while (t.ttype == '<') {
-                t.nextToken();
-                if (t.ttype != StreamTokenizer.TT_WORD) {
-                    throw new IOException(t.lineno() + ": Word expected after '<'");
+            String cname = t.sval;
+            t.nextToken();
+            if (t.ttype != '>') {
+                throw new IOException(t.lineno() + ": '>' expected");
+            }
+            t.nextToken();
+            Vector<String> v = new Vector<String>();
+            while (t.ttype != '<') {
+                if (t.ttype == '+') {
+                    t.nextToken();
                 }
-
-                String cname = t.sval;
-                t.nextToken();
-                if (t.ttype != '>') {
-                    throw new IOException(t.lineno() + ": '>' expected");
+                if (t.ttype != StreamTokenizer.TT_WORD) {
+                    throw new IOException(t.lineno() + ": Word expected after '+'");
                 }
+                String key = t.sval;
                 t.nextToken();
-                Vector v = new Vector();
-                while (t.ttype != '<') {
-                    if (t.ttype == '+') {
-                        t.nextToken();
-                    }
-                    if (t.ttype != StreamTokenizer.TT_WORD) {
-                        throw new IOException(t.lineno() + ": Word expected after '+'");
-                    }
-                    String key = t.sval;
+                if (t.ttype == '=') {
                     t.nextToken();
-                    if (t.ttype == '=') {
-                        t.nextToken();
-                        //Removed check to allow for proj4 hack +nadgrids=@null
-                        //if ( t.ttype != StreamTokenizer.TT_WORD )
-                        //	throw new IOException( t.lineno()+": Value expected after '='" );
-                        String value = t.sval;
-                        t.nextToken();
-                        if (key.startsWith("+")) {
-                            v.add(key + "=" + value);
-                        } else {
-                            v.add("+" + key + "=" + value);
-                        }
+                    //Removed check to allow for proj4 hack +nadgrids=@null
+                    //if ( t.ttype != StreamTokenizer.TT_WORD )
+                    //	throw new IOException( t.lineno()+": Value expected after '='" );
+                    String value = t.sval;
+                    t.nextToken();
+                    if (key.startsWith("+")) {
+                        v.add(key + "=" + value);
+                    } else {
+                        v.add("+" + key + "=" + value);
                     }
                 }
-                t.nextToken();
-                if (t.ttype != '>') {
-                    throw new IOException(t.lineno() + ": '<>' expected");
-                }
-                t.nextToken();
-                if (cname.equals(name)) {
-                    String[] args = new String[v.size()];
-                    v.copyInto(args);
-                    return fromPROJ4Specification(args);
-                }
             }
-            return null;
-        } finally {
-            if (reader != null) {
-                reader.close();
+            t.nextToken();
+            if (t.ttype != '>') {
+                throw new IOException(t.lineno() + ": '<>' expected");
+            }
+            t.nextToken();
+            // the first definition of a name is used
+            if (!catalogue.containsKey(cname)) {
+                String[] args = new String[v.size()];
+                v.copyInto(args);
+                catalogue.put(cname, args);
             }
         }
-
+        return catalogue;
     }
 
     public static Projection getNamedPROJ4CoordinateSystem(String name) {
@@ -444,40 +823,15 @@ public class ProjectionFactory {
         return null;
     }
 
+    /**
+     * Project coordinates read from files or standard input.
+     * See StreamProjector for the arguments.
+     */
     public static void main(String[] args) {
-        Projection projection = ProjectionFactory.fromPROJ4Specification(args);
-
-
-        if (projection != null) {
-            System.out.println(projection.getPROJ4Description());
-
-            for (int i = 0; i
-                    < args.length; i++) {
-                String arg = args[i];
-
-
-                if (!arg.startsWith("+") && !arg.startsWith("-")) {
-                    try {
-                        BufferedReader reader = new BufferedReader(new FileReader(new File(args[i])));
-                        Point2D p = new Point2D();
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            StringTokenizer t = new StringTokenizer(line, " ");
-                            String slon = t.nextToken();
-                            String slat = t.nextToken();
-                            p.x = format.parse(slon, null).doubleValue();
-                            p.y = format.parse(slat, null).doubleValue();
-                            projection.transform(p, p);
-                            System.out.println(p.x + " " + p.y);
-                        }
-                    } catch (IOException e) {
-                        System.out.println("IOException: " + args[i] + ": " + e.getMessage());
-                    }
-                }
-            }
-        } else {
-            System.out.println("Can't find projection " + args[0]);
+        try {
+            StreamProjector.main(args);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
         }
-
     }
 }
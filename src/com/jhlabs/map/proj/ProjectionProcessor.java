@@ -0,0 +1,329 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A Flow.Processor that projects batches of interleaved lon/lat points (in
+ * degrees) to batches of points in metres, or the inverse. Each batch is
+ * projected into a new array on an executor, with up to parallelism batches
+ * projected at the same time; other received batches wait in a queue until
+ * a projection finishes. Batches are emitted in the order they were
+ * received.
+ *
+ * Batches are only requested from the upstream publisher when the downstream
+ * subscriber has demand for them, and no more than twice the parallelism
+ * are received and not yet emitted, so memory use is bounded. Only one
+ * subscriber is supported.
+ */
+public class ProjectionProcessor implements Flow.Processor<double[], double[]> {
+
+    private final Projection projection;
+    private final boolean inverse;
+    private final Executor executor;
+    private final int parallelism;
+    private final int maxInFlight;
+    /**
+     * Idle clones of the projection, one for each batch projected at the same time.
+     */
+    private final ConcurrentLinkedQueue<Projection> clones = new ConcurrentLinkedQueue<Projection>();
+    // the following fields are guarded by this
+    private final ArrayDeque<Slot> pending = new ArrayDeque<Slot>();
+    private final ArrayDeque<Slot> waiting = new ArrayDeque<Slot>();
+    private int running = 0;
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super double[]> downstream;
+    private long demand = 0;
+    private long requested = 0;
+    private boolean upstreamDone = false;
+    private Throwable upstreamError;
+    private boolean terminated = false;
+    private boolean emitting = false;
+    private boolean missed = false;
+
+    /**
+     * A received batch in the order of arrival.
+     */
+    private static class Slot {
+
+        double[] points;
+        double[] result;
+        Throwable error;
+        boolean done;
+    }
+
+    /**
+     * Create a processor projecting on the common ForkJoinPool.
+     * @param projection An initialized projection. It is cloned and not modified.
+     * @param inverse If true, batches are inverse-projected.
+     * @param parallelism The maximum number of batches projected at the same time.
+     */
+    public ProjectionProcessor(Projection projection, boolean inverse, int parallelism) {
+        this(projection, inverse, parallelism, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a processor projecting on the passed executor.
+     * @param projection An initialized projection. It is cloned and not modified.
+     * @param inverse If true, batches are inverse-projected.
+     * @param parallelism The maximum number of batches projected at the same time.
+     * @param executor The executor projecting the batches.
+     */
+    public ProjectionProcessor(Projection projection, boolean inverse, int parallelism, Executor executor) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.projection = (Projection) projection.clone();
+        this.inverse = inverse;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.maxInFlight = 2 * parallelism;
+    }
+
+    public void subscribe(final Flow.Subscriber<? super double[]> subscriber) {
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+            } else {
+                subscriber.onSubscribe(new Flow.Subscription() {
+
+                    public void request(long n) {
+                    }
+
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+                return;
+            }
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+
+            public void request(long n) {
+                synchronized (ProjectionProcessor.this) {
+                    if (n <= 0) {
+                        Slot slot = new Slot();
+                        slot.error = new IllegalArgumentException("Non-positive request: " + n);
+                        slot.done = true;
+                        pending.addFirst(slot);
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                drain();
+            }
+
+            public void cancel() {
+                Flow.Subscription s;
+                synchronized (ProjectionProcessor.this) {
+                    terminated = true;
+                    pending.clear();
+                    waiting.clear();
+                    s = upstream;
+                }
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+        });
+        drain();
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null || terminated) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        drain();
+    }
+
+    public void onNext(double[] points) {
+        Slot slot = new Slot();
+        slot.points = points;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            requested--;
+            pending.add(slot);
+            waiting.add(slot);
+        }
+        execute();
+    }
+
+    /**
+     * Pass waiting batches to the executor while fewer than parallelism are
+     * being projected.
+     */
+    private void execute() {
+        while (true) {
+            final Slot slot;
+            synchronized (this) {
+                if (terminated || running >= parallelism || waiting.isEmpty()) {
+                    return;
+                }
+                slot = waiting.poll();
+                running++;
+            }
+            try {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        double[] result = null;
+                        Throwable error = null;
+                        try {
+                            result = project(slot.points);
+                        } catch (Throwable t) {
+                            error = t;
+                        }
+                        synchronized (ProjectionProcessor.this) {
+                            slot.points = null;
+                            slot.result = result;
+                            slot.error = error;
+                            slot.done = true;
+                            running--;
+                        }
+                        execute();
+                        drain();
+                    }
+                });
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    slot.points = null;
+                    slot.error = e;
+                    slot.done = true;
+                    running--;
+                }
+                drain();
+            }
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            upstreamError = throwable;
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    private double[] project(double[] points) {
+        Projection p = clones.poll();
+        if (p == null) {
+            p = (Projection) projection.clone();
+        }
+        double[] result = new double[points.length];
+        if (inverse) {
+            p.inverseTransform(points, 0, result, 0, points.length / 2);
+        } else {
+            p.transform(points, 0, result, 0, points.length / 2);
+        }
+        clones.add(p);
+        return result;
+    }
+
+    /**
+     * Emit finished batches in order, signal errors and completion, and
+     * request more batches. Only one thread emits at a time.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (emitting) {
+                missed = true;
+                return;
+            }
+            emitting = true;
+        }
+        while (true) {
+            Flow.Subscriber<? super double[]> s;
+            Flow.Subscription up;
+            boolean cancel = false;
+            double[] item = null;
+            Throwable error = null;
+            boolean complete = false;
+            long request = 0;
+            synchronized (this) {
+                missed = false;
+                s = downstream;
+                up = upstream;
+                if (terminated || s == null) {
+                    emitting = false;
+                    return;
+                }
+                Slot head = pending.peek();
+                if (head != null && head.done) {
+                    if (head.error != null) {
+                        error = head.error;
+                        cancel = up != null && !upstreamDone;
+                        terminated = true;
+                        pending.clear();
+                        waiting.clear();
+                    } else if (demand > 0) {
+                        pending.poll();
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                        item = head.result;
+                    }
+                } else if (head == null && upstreamDone) {
+                    error = upstreamError;
+                    complete = error == null;
+                    terminated = true;
+                }
+                if (item == null && error == null && !complete) {
+                    if (up != null && !upstreamDone) {
+                        long wanted = Math.min(maxInFlight, demand) - pending.size() - requested;
+                        if (wanted > 0) {
+                            requested += wanted;
+                            request = wanted;
+                        }
+                    }
+                    if (request == 0 && !missed) {
+                        emitting = false;
+                        return;
+                    }
+                }
+            }
+            if (item != null) {
+                s.onNext(item);
+            } else if (error != null) {
+                if (cancel) {
+                    up.cancel();
+                }
+                s.onError(error);
+            } else if (complete) {
+                s.onComplete();
+            } else if (request > 0) {
+                up.request(request);
+            }
+        }
+    }
+}
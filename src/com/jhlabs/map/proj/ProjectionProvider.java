@@ -0,0 +1,33 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A source of projections for ProjectionFactory, found with ServiceLoader.
+ * Implementations are listed in
+ * META-INF/services/com.jhlabs.map.proj.ProjectionProvider on the class path.
+ */
+public interface ProjectionProvider {
+
+    /**
+     * Returns factories of new projections by PROJ.4 name. Names already
+     * registered by ProjectionFactory or another provider are ignored.
+     */
+    Map<String, Supplier<Projection>> getProjections();
+}
@@ -0,0 +1,592 @@
+/*
+Copyright 2006 Jerry Huxtable
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.jhlabs.map.proj;
+
+import com.jhlabs.geom.*;
+import com.jhlabs.map.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streaming reprojection of text coordinates, similar to the PROJ.4 cs2cs
+ * and proj tools. Each input line holds a longitude and a latitude separated
+ * by white space, either as decimal degrees or as DMS strings, e.g. 8d30'15"E.
+ * Additional values on a line are ignored. Each output line holds the
+ * projected x and y, or * * if the line could not be parsed or projected.
+ * Blank lines are copied, so output lines match input lines.
+ *
+ * Parsing, projection and output run on three threads connected by queues of
+ * recycled batches. Input is read and output written through large NIO
+ * buffers; numbers are parsed and formatted without allocating objects.
+ *
+ * Usage: StreamProjector [-I] [-d decimals] +proj=... [file ...]
+ * -I inverse-projects x/y to lon/lat. Without files, standard input is read.
+ */
+public class StreamProjector {
+
+    private final static int BATCH_SIZE = 4096;
+    private final static int BATCH_COUNT = 8;
+    private final static int BUFFER_SIZE = 1 << 20;
+    private final static int MAX_TOKEN_LENGTH = 64;
+    private final static long[] POW10 = new long[19];
+    private final static double[] DOUBLE_POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        // powers of ten up to 1e22 are exact doubles
+        DOUBLE_POW10[0] = 1;
+        for (int i = 1; i < DOUBLE_POW10.length; i++) {
+            DOUBLE_POW10[i] = DOUBLE_POW10[i - 1] * 10;
+        }
+    }
+
+    private final Projection projection;
+    private boolean inverse = false;
+    private int decimals = 6;
+
+    /**
+     * A batch of points passed between the threads, one for each input line.
+     * A negative count marks the end of the stream.
+     */
+    private static class Batch {
+
+        final double[] points = new double[2 * BATCH_SIZE];
+        final double[] result = new double[2 * BATCH_SIZE];
+        /**
+         * True for the lines without values, which are written as blank lines.
+         */
+        final boolean[] blank = new boolean[BATCH_SIZE];
+        int count;
+    }
+
+    public StreamProjector(Projection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * If true, projected x/y values are inverse-projected to lon/lat.
+     */
+    public void setInverse(boolean inverse) {
+        this.inverse = inverse;
+    }
+
+    public boolean isInverse() {
+        return inverse;
+    }
+
+    /**
+     * Set the number of decimals written for each value.
+     */
+    public void setDecimals(int decimals) {
+        if (decimals < 0 || decimals > 15) {
+            throw new IllegalArgumentException("Decimals must be between 0 and 15");
+        }
+        this.decimals = decimals;
+    }
+
+    public int getDecimals() {
+        return decimals;
+    }
+
+    /**
+     * Read coordinates from in, project them and write the result to out.
+     * The channels are not closed.
+     */
+    public void run(final ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(BATCH_COUNT);
+        // one more slot for the batch marking the end after an error
+        final BlockingQueue<Batch> parsed = new ArrayBlockingQueue<Batch>(BATCH_COUNT + 1);
+        final BlockingQueue<Batch> projected = new ArrayBlockingQueue<Batch>(BATCH_COUNT + 1);
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            free.add(new Batch());
+        }
+        final Throwable[] error = new Throwable[1];
+
+        Thread parser = new Thread("StreamProjector parser") {
+
+            public void run() {
+                try {
+                    parse(in, free, parsed);
+                } catch (Throwable t) {
+                    fail(error, t, parsed);
+                }
+            }
+        };
+        Thread projector = new Thread("StreamProjector projector") {
+
+            public void run() {
+                try {
+                    project(parsed, projected);
+                } catch (Throwable t) {
+                    fail(error, t, projected);
+                }
+            }
+        };
+        parser.setDaemon(true);
+        projector.setDaemon(true);
+        parser.start();
+        projector.start();
+        try {
+            write(out, projected, free);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            parser.interrupt();
+            projector.interrupt();
+        }
+        synchronized (error) {
+            if (error[0] instanceof IOException) {
+                throw (IOException) error[0];
+            }
+            if (error[0] instanceof RuntimeException) {
+                throw (RuntimeException) error[0];
+            }
+            if (error[0] != null) {
+                throw new IOException(error[0].toString());
+            }
+        }
+    }
+
+    /**
+     * Record an error of a worker thread and end the stream downstream.
+     */
+    private static void fail(Throwable[] error, Throwable t, BlockingQueue<Batch> next) {
+        synchronized (error) {
+            if (error[0] == null) {
+                error[0] = t;
+            }
+        }
+        Batch end = new Batch();
+        end.count = -1;
+        next.offer(end);
+    }
+
+    private void parse(ReadableByteChannel in, BlockingQueue<Batch> free, BlockingQueue<Batch> parsed)
+            throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        LineParser parser = new LineParser(free, parsed);
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            int n = buffer.limit();
+            for (int i = 0; i < n; i++) {
+                parser.put(buffer.get(i));
+            }
+            buffer.clear();
+        }
+        // a missing newline at the end of the input terminates the last line
+        if (!parser.atLineStart()) {
+            parser.put((byte) '\n');
+        }
+        parser.end();
+    }
+
+    /**
+     * Splits bytes into lines and white space separated tokens, and collects
+     * the first two values of each line in batches.
+     */
+    private static class LineParser {
+
+        private final BlockingQueue<Batch> free, parsed;
+        private final byte[] token = new byte[MAX_TOKEN_LENGTH];
+        private int tokenLength = 0;
+        private int tokenCount = 0;
+        private double first, second;
+        private boolean lineStart = true;
+        private Batch batch;
+
+        LineParser(BlockingQueue<Batch> free, BlockingQueue<Batch> parsed) throws InterruptedException {
+            this.free = free;
+            this.parsed = parsed;
+            batch = free.take();
+            batch.count = 0;
+        }
+
+        boolean atLineStart() {
+            return lineStart;
+        }
+
+        void put(byte c) throws InterruptedException {
+            lineStart = c == '\n';
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (tokenLength > 0) {
+                    if (tokenCount == 0) {
+                        first = parseAngle(token, tokenLength);
+                    } else if (tokenCount == 1) {
+                        second = parseAngle(token, tokenLength);
+                    }
+                    tokenCount++;
+                    tokenLength = 0;
+                }
+                if (c == '\n') {
+                    int i = 2 * batch.count;
+                    batch.blank[batch.count] = tokenCount == 0;
+                    if (tokenCount == 0) {
+                        // a point that projects, so the batch is not projected point by point
+                        batch.points[i] = batch.points[i + 1] = 0;
+                    } else {
+                        batch.points[i] = first;
+                        batch.points[i + 1] = tokenCount > 1 ? second : Double.NaN;
+                    }
+                    if (++batch.count == BATCH_SIZE) {
+                        parsed.put(batch);
+                        batch = free.take();
+                        batch.count = 0;
+                    }
+                    tokenCount = 0;
+                }
+            } else if (tokenLength < MAX_TOKEN_LENGTH) {
+                token[tokenLength++] = c;
+            } else {
+                // overlong tokens are invalid
+                token[0] = '?';
+            }
+        }
+
+        void end() throws InterruptedException {
+            if (batch.count > 0) {
+                parsed.put(batch);
+                batch = free.take();
+            }
+            batch.count = -1;
+            parsed.put(batch);
+        }
+    }
+
+    private void project(BlockingQueue<Batch> parsed, BlockingQueue<Batch> projected) throws InterruptedException {
+        Point2D p = new Point2D();
+        while (true) {
+            Batch batch = parsed.take();
+            if (batch.count > 0) {
+                double[] points = batch.points;
+                double[] result = batch.result;
+                try {
+                    if (inverse) {
+                        projection.inverseTransform(points, 0, result, 0, batch.count);
+                    } else {
+                        projection.transform(points, 0, result, 0, batch.count);
+                    }
+                } catch (RuntimeException e) {
+                    // project point by point, marking the points that fail
+                    for (int i = 0; i < 2 * batch.count; i += 2) {
+                        p.x = points[i];
+                        p.y = points[i + 1];
+                        try {
+                            if (inverse) {
+                                projection.inverseTransform(p, p);
+                            } else {
+                                projection.transform(p, p);
+                            }
+                            result[i] = p.x;
+                            result[i + 1] = p.y;
+                        } catch (RuntimeException ex) {
+                            result[i] = result[i + 1] = Double.NaN;
+                        }
+                    }
+                }
+            }
+            projected.put(batch);
+            if (batch.count < 0) {
+                return;
+            }
+        }
+    }
+
+    private void write(WritableByteChannel out, BlockingQueue<Batch> projected, BlockingQueue<Batch> free)
+            throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (true) {
+            Batch batch = projected.take();
+            if (batch.count < 0) {
+                break;
+            }
+            double[] result = batch.result;
+            for (int i = 0; i < 2 * batch.count; i += 2) {
+                if (buffer.remaining() < 128) {
+                    flush(out, buffer);
+                }
+                double x = result[i];
+                double y = result[i + 1];
+                if (batch.blank[i / 2]) {
+                    // nothing but the newline
+                } else if (Double.isNaN(x) || Double.isNaN(y)) {
+                    buffer.put((byte) '*').put((byte) '\t').put((byte) '*');
+                } else {
+                    formatNumber(x, buffer);
+                    buffer.put((byte) '\t');
+                    formatNumber(y, buffer);
+                }
+                buffer.put((byte) '\n');
+            }
+            batch.count = 0;
+            free.put(batch);
+        }
+        flush(out, buffer);
+    }
+
+    private static void flush(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write a number with a fixed number of decimals. Numbers which round
+     * to zero are written without a sign.
+     */
+    private void formatNumber(double v, ByteBuffer buffer) {
+        if (Double.isInfinite(v)) {
+            buffer.put((byte) '*');
+            return;
+        }
+        boolean negative = v < 0;
+        if (negative) {
+            v = -v;
+        }
+        double scaled = v * POW10[decimals] + 0.5;
+        if (scaled >= 9e18) {
+            byte[] s = Double.toString(negative ? -v : v).getBytes();
+            buffer.put(s);
+            return;
+        }
+        long l = (long) scaled;
+        if (negative && l != 0) {
+            buffer.put((byte) '-');
+        }
+        long intPart = l / POW10[decimals];
+        long fraction = l - intPart * POW10[decimals];
+        putDigits(intPart, 1, buffer);
+        if (decimals > 0) {
+            buffer.put((byte) '.');
+            putDigits(fraction, decimals, buffer);
+        }
+    }
+
+    /**
+     * Write the decimal digits of a non-negative number, padded with zeros to
+     * at least minDigits digits.
+     */
+    private static void putDigits(long v, int minDigits, ByteBuffer buffer) {
+        int digits = 1;
+        while (digits < 19 && v >= POW10[digits]) {
+            digits++;
+        }
+        for (int i = Math.max(digits, minDigits) - 1; i >= 0; i--) {
+            buffer.put((byte) ('0' + (v / POW10[i]) % 10));
+        }
+    }
+
+    /**
+     * Parse an angle in decimal degrees or as degrees, minutes and seconds,
+     * with an optional N, S, E or W suffix, like AngleFormat does.
+     * Plain numbers are returned unchanged. Returns NaN if the token is invalid.
+     */
+    static double parseAngle(byte[] b, int length) {
+        boolean negate = false;
+        if (length > 0) {
+            byte c = b[length - 1];
+            if (c == 'W' || c == 'S') {
+                negate = true;
+                length--;
+            } else if (c == 'E' || c == 'N') {
+                length--;
+            }
+        }
+        int i = indexOf(b, 0, length, (byte) 'd');
+        int markerLength = 1;
+        if (i < 0) {
+            // UTF-8 degree sign
+            i = indexOf(b, 0, length, (byte) 0xb0);
+            if (i > 0 && b[i - 1] == (byte) 0xc2) {
+                i--;
+                markerLength = 2;
+            } else {
+                i = -1;
+            }
+        }
+        double result;
+        if (i < 0) {
+            result = parseNumber(b, 0, length);
+        } else {
+            double d = parseNumber(b, 0, i);
+            double m = 0, s = 0;
+            int start = i + markerLength;
+            int j = indexOf(b, start, length, (byte) 'm');
+            if (j < 0) {
+                j = indexOf(b, start, length, (byte) '\'');
+            }
+            if (j < 0) {
+                if (start < length) {
+                    m = parseNumber(b, start, length);
+                }
+            } else {
+                if (j > start) {
+                    m = parseNumber(b, start, j);
+                }
+                int end = length;
+                if (end > j + 1 && (b[end - 1] == 's' || b[end - 1] == '"')) {
+                    end--;
+                }
+                if (end > j + 1) {
+                    s = parseNumber(b, j + 1, end);
+                }
+            }
+            if (!(m >= 0 && m < 60 && s >= 0 && s < 60)) {
+                return Double.NaN;
+            }
+            result = MapMath.dmsToDeg(d, m, s);
+        }
+        return negate ? -result : result;
+    }
+
+    private static int indexOf(byte[] b, int start, int end, byte c) {
+        for (int i = start; i < end; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a decimal number. Numbers with up to 15 significant digits and a
+     * small exponent are converted exactly without allocating objects, all
+     * other numbers are passed to Double.parseDouble. Returns NaN if the
+     * number is invalid.
+     */
+    static double parseNumber(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean slow = false;
+        for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+            anyDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (b[i] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                slow = true;
+            }
+        }
+        if (i < end && b[i] == '.') {
+            for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                anyDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b[i] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    slow = true;
+                }
+            }
+        }
+        if (!anyDigit) {
+            return Double.NaN;
+        }
+        if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (b[i] == '-' || b[i] == '+')) {
+                negativeExponent = b[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return Double.NaN;
+            }
+            int e = 0;
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                if (e < 10000) {
+                    e = e * 10 + (b[i] - '0');
+                }
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        if (slow || digits > 15 || exponent < -22 || exponent > 22) {
+            return Double.parseDouble(new String(b, start, end - start));
+        }
+        double v = exponent < 0 ? mantissa / DOUBLE_POW10[-exponent] : mantissa * DOUBLE_POW10[exponent];
+        return negative ? -v : v;
+    }
+
+    /**
+     * Command line tool. See the class comment for the arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        // split the options and files from the projection parameters
+        List<String> parameters = new ArrayList<String>();
+        List<String> files = new ArrayList<String>();
+        boolean inverse = false;
+        int decimals = -1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-I")) {
+                inverse = true;
+            } else if (arg.equals("-d") && i + 1 < args.length) {
+                decimals = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("+")) {
+                parameters.add(arg);
+            } else if (!arg.startsWith("-")) {
+                files.add(arg);
+            }
+        }
+        Projection projection = ProjectionFactory.fromPROJ4Specification(parameters.toArray(new String[parameters.size()]));
+        if (projection == null) {
+            System.out.println("Can't find projection " + (args.length > 0 ? args[0] : ""));
+            return;
+        }
+        StreamProjector projector = new StreamProjector(projection);
+        projector.setInverse(inverse);
+        if (decimals >= 0) {
+            projector.setDecimals(decimals);
+        }
+        WritableByteChannel out = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        for (int i = 0; i < files.size(); i++) {
+            FileInputStream in = new FileInputStream(files.get(i));
+            try {
+                projector.run(in.getChannel(), out);
+            } finally {
+                in.close();
+            }
+        }
+        if (files.isEmpty()) {
+            projector.run(Channels.newChannel(System.in), out);
+        }
+    }
+}
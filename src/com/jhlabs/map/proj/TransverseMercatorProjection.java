@@ -41,9 +41,19 @@ public class TransverseMercatorProjection extends CylindricalProjection {
     private final static double FC6 = 0.03333333333333333333;
     private final static double FC7 = 0.02380952380952380952;
     private final static double FC8 = 0.01785714285714285714;
+    /**
+     * The largest eccentricity squared for which the footpoint latitude
+     * series is within 1e-11 radians, the tolerance of inv_mlfn.
+     */
+    private final static double MAX_SERIES_ES = 0.01;
     private double esp;
     private double ml0;
     private double[] en;
+    /**
+     * Coefficients of the footpoint latitude series, null if inv_mlfn iterates.
+     */
+    private double[] inv_en;
+    private boolean iterativeFootpoint = false;
 
     public TransverseMercatorProjection() {
         initialize();
@@ -67,21 +77,56 @@ public class TransverseMercatorProjection extends CylindricalProjection {
         if (en != null) {
             p.en = (double[]) en.clone();
         }
+        if (inv_en != null) {
+            p.inv_en = (double[]) inv_en.clone();
+        }
         return p;
     }
 
     public void initialize() {
         super.initialize();
+        initializeSeries();
+    }
+
+    /**
+     * Compute the constants of the series of project and projectInverse.
+     * Subclasses with their own formulas override this to skip them.
+     */
+    protected void initializeSeries() {
         if (spherical) {
             esp = scaleFactor;
             ml0 = .5 * esp;
         } else {
             en = MapMath.enfn(es);
+            inv_en = iterativeFootpoint || es > MAX_SERIES_ES ? null : MapMath.inv_enfn(es);
             ml0 = MapMath.mlfn(projectionLatitude, Math.sin(projectionLatitude), Math.cos(projectionLatitude), en);
             esp = es / (1. - es);
         }
     }
 
+    /**
+     * If true, the inverse projection computes the footpoint latitude with
+     * the iterative MapMath.inv_mlfn. Otherwise a series of fixed length is
+     * used, which is faster and at least as accurate for the eccentricity of
+     * the Earth. Its error grows with the fifth power of the eccentricity
+     * squared, so the iteration is always used when that is more than 0.01.
+     * initialize must be called after changing this.
+     */
+    public void setIterativeFootpoint(boolean iterativeFootpoint) {
+        this.iterativeFootpoint = iterativeFootpoint;
+    }
+
+    public boolean isIterativeFootpoint() {
+        return iterativeFootpoint;
+    }
+
+    private double footpointLatitude(double arg) {
+        if (inv_en != null) {
+            return MapMath.inv_mlfn(arg, inv_en);
+        }
+        return MapMath.inv_mlfn(arg, es, en);
+    }
+
     public int getRowFromNearestParallel(double latitude) {
         int degrees = (int) MapMath.radToDeg(MapMath.normalizeLatitude(latitude));
         if (degrees < -80 || degrees > 84) {
@@ -159,6 +204,39 @@ public class TransverseMercatorProjection extends CylindricalProjection {
         return xy;
     }
 
+    protected void partialDerivatives(double lplam, double lpphi, double x, double y, double[] d) {
+        double sinphi = Math.sin(lpphi);
+        double cosphi = Math.cos(lpphi);
+        if (spherical) {
+            double sinlam = Math.sin(lplam);
+            double coslam = Math.cos(lplam);
+            double b = cosphi * sinlam;
+            double r = 1. / (1. - b * b);
+            double rx = 2. * ml0 * scaleFactor * r;
+            d[0] = rx * cosphi * coslam;
+            d[1] = -rx * sinphi * sinlam;
+            d[2] = esp * r * sinphi * cosphi * sinlam;
+            d[3] = esp * r * coslam;
+            return;
+        }
+        // derivatives of the series of project by longitude
+        double t = Math.abs(cosphi) > 1e-10 ? sinphi / cosphi : 0.0;
+        t *= t;
+        double als = cosphi * lplam;
+        als *= als;
+        double nc = scaleFactor * cosphi / Math.sqrt(1. - es * sinphi * sinphi);
+        double n = esp * cosphi * cosphi;
+        d[0] = nc * (FC1
+                + FC2 * als * (1. - t + n
+                + FC4 * als * (5. + t * (t - 18.) + n * (14. - 58. * t)
+                + FC6 * als * (61. + t * (t * (179. - t) - 479.)))));
+        d[2] = nc * sinphi * lplam * (1.
+                + FC3 * als * (5. - t + n * (9. + 4. * n)
+                + FC5 * als * (61. + t * (t - 58.) + n * (270. - 330 * t)
+                + FC7 * als * (1385. + t * (t * (543. - t) - 3111.)))));
+        conformalDerivatives(lpphi, d);
+    }
+
     public Point2D projectInverse(double x, double y, Point2D out) {
         if (spherical) {
             /*
@@ -182,7 +260,7 @@ public class TransverseMercatorProjection extends CylindricalProjection {
         } else {
             double n, con, cosphi, d, ds, sinphi, t;
 
-            out.y = MapMath.inv_mlfn(ml0 + y / scaleFactor, es, en);
+            out.y = footpointLatitude(ml0 + y / scaleFactor);
             if (Math.abs(y) >= MapMath.HALFPI) {
                 out.y = y < 0. ? -MapMath.HALFPI : MapMath.HALFPI;
                 out.x = 0.;